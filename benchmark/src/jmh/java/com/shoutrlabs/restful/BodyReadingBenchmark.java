@@ -0,0 +1,122 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The body reading of getString, getJSON, getRawData and getRawDataBuffer, against in-memory entities
+ * of known and unknown length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BodyReadingBenchmark {
+
+	@Param({ "1024", "65536", "1048576" })
+	public int size;
+
+	private byte[] mText;
+	private byte[] mJson;
+
+	@Setup
+	public void setUp() throws Exception {
+		StringBuilder sb = new StringBuilder(size);
+		while(sb.length() < size)
+			sb.append("Lorem ipsum dolor sit amet, consectetur adipisici elit.\n");
+		sb.setLength(size);
+		mText = sb.toString().getBytes("UTF-8");
+
+		// an object with an array of small objects, like a typical list answer
+		sb.setLength(0);
+		sb.append("{\"items\":[");
+		for(int i = 0; sb.length() < size - 100; i++) {
+			if(i > 0)
+				sb.append(',');
+			sb.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i)
+					.append("\",\"price\":").append(i * 0.25).append(",\"active\":true}");
+		}
+		sb.append("]}");
+		mJson = sb.toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public String getString() throws IOException {
+		return RESTfulBufferPool.toString(new ByteArrayEntity(mText));
+	}
+
+	@Benchmark
+	public byte[] getRawDataKnownLength() throws IOException {
+		return RESTfulBufferPool.readFully(new ByteArrayInputStream(mText), mText.length, RESTfulBufferPool.MEDIUM);
+	}
+
+	@Benchmark
+	public byte[] getRawDataUnknownLength() throws IOException {
+		// like a chunked response
+		return RESTfulBufferPool.readFully(new ByteArrayInputStream(mText), -1, RESTfulBufferPool.MEDIUM);
+	}
+
+	@Benchmark
+	public ByteBuffer getRawDataBuffer() throws IOException {
+		return ByteBufferReader.read(new ByteArrayInputStream(mText), mText.length, RESTfulClient.DEFAULT_BUFFER_SPILL_THRESHOLD, null);
+	}
+
+	@Benchmark
+	public ByteBuffer getRawDataBufferUnknownLength() throws IOException {
+		// like a chunked or gzipped response
+		return ByteBufferReader.read(new ByteArrayInputStream(mText), -1, RESTfulClient.DEFAULT_BUFFER_SPILL_THRESHOLD, null);
+	}
+
+	@Benchmark
+	public JSONObject getJSON() throws Exception {
+		return new JSONObject(RESTfulBufferPool.toString(new ByteArrayEntity(mJson)));
+	}
+
+	@Benchmark
+	public JSONObject getJSONDecoded() throws Exception {
+		// getJSON with JSONStreamDecoder.OBJECT
+		return JSONStreamDecoder.OBJECT.decode(new ByteArrayInputStream(mJson), "UTF-8");
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import android.os.Handler;
+
+/**
+ * Callback dispatch: a whole getJSON round trip served from the response cache, i.e. queueing,
+ * worker hand-off, decoding and posting the callback, and the progress updates of transfers.
+ *
+ * The benchmark Handler runs messages on the posting thread, the hop to the main Looper is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+	private static final String URL = "http://localhost/dispatch";
+
+	private RESTfulClient mClient;
+	private final Handler mHandler = new Handler();
+	private ProgressDispatcher mProgress;
+	private long mProgressTotal;
+
+	@Setup
+	public void setUp() {
+		RESTfulResponseCache cache = new RESTfulResponseCache(1024 * 1024);
+		cache.put(new RESTfulResponseCache.Entry(URL, "{\"id\":1,\"name\":\"cached\"}".getBytes(), null, null, Long.MAX_VALUE));
+		mClient = new RESTfulClient(false);
+		mClient.setResponseCache(cache);
+
+		mProgress = new ProgressDispatcher(mHandler, this, RESTfulClient.DEFAULT_PROGRESS_INTERVAL_MILLIS, 0) {
+			@Override
+			void deliver(long delta, long total, long expected) {
+			}
+		};
+	}
+
+	@TearDown
+	public void tearDown() {
+		mClient.quit();
+	}
+
+	@Benchmark
+	public Object cachedGetJSONRoundTrip() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Object[] result = new Object[1];
+		mClient.getJSON(mHandler, URL, new RESTfulInterface.OnGetJSONCompleteListener() {
+			@Override
+			public void onComplete(JSONObject returned) {
+				result[0] = returned;
+				done.countDown();
+			}
+		});
+		done.await();
+		return result[0];
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void progressUpdate() {
+		// one update per 8K read, most of them coalesced
+		mProgressTotal += 8192;
+		mProgress.update(mProgressTotal, -1);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing multipart bodies, plain and with progress counting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultipartBenchmark {
+
+	@Param({ "65536", "4194304" })
+	public int size;
+
+	private byte[] mData;
+	private Blackhole mBlackhole;
+
+	private final OutputStream mSink = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		mData = new byte[size];
+		for(int i = 0; i < mData.length; i++)
+			mData[i] = (byte) i;
+		mBlackhole = blackhole;
+	}
+
+	private void addParts(MultipartEntity entity) {
+		entity.addPart("file0", new InputStreamBody(new ByteArrayInputStream(mData), "application/octet-stream", "file0.bin"));
+		entity.addPart("file1", new InputStreamBody(new ByteArrayInputStream(mData), "application/octet-stream", "file1.bin"));
+	}
+
+	@Benchmark
+	public void withoutListener() throws IOException {
+		// what CountingMultipartEntity adds its counting to
+		MultipartEntity entity = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
+		addParts(entity);
+		entity.writeTo(mSink);
+	}
+
+	@Benchmark
+	public void withNoOpListener() throws IOException {
+		CountingMultipartEntity entity = new CountingMultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE,
+				new CountingMultipartEntity.ProgressListener() {
+					@Override
+					public void transferred(long num) {
+					}
+				});
+		addParts(entity);
+		entity.writeTo(mSink);
+	}
+
+	@Benchmark
+	public void withListener() throws IOException {
+		CountingMultipartEntity entity = new CountingMultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE,
+				new CountingMultipartEntity.ProgressListener() {
+					@Override
+					public void transferred(long num) {
+						mBlackhole.consume(num);
+					}
+				});
+		addParts(entity);
+		entity.writeTo(mSink);
+	}
+}
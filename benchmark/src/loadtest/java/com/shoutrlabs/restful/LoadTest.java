@@ -0,0 +1,477 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Handler;
+
+/**
+ * End-to-end load test: drives a RESTfulClient against a LoadTestServer with a mix of getJSON, getFile,
+ * postMultipart and getSize calls and reports throughput and latency percentiles per call type.
+ *
+ * Each argument is a scenario properties file, see loadtest/*.properties. The results of a scenario are
+ * compared against its stored baseline, foo.baseline.properties next to foo.properties, and the run fails
+ * if throughput dropped or latency grew by more than the scenario's tolerance. Without a baseline, or
+ * with -DupdateBaseline=true, the results are stored as the new baseline instead.
+ *
+ * Latency is measured from issuing a call until its complete callback ran. Failed calls count as errors
+ * and are not part of the latency figures.
+ */
+public class LoadTest {
+
+	static final String[] MODES = { "getJSON", "getFile", "postMultipart", "getSize" };
+
+	private static final long CALL_TIMEOUT_MILLIS = 120000;
+
+	// latencies below this never count as regressions, small figures are too noisy
+	private static final double LATENCY_SLACK_MILLIS = 5;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0) {
+			System.err.println("usage: LoadTest scenario.properties...");
+			System.exit(2);
+		}
+
+		boolean updateBaseline = Boolean.getBoolean("updateBaseline");
+		boolean regressed = false;
+		LoadTestKeys keys = null;
+
+		for(String path : args) {
+			File file = new File(path);
+			Scenario scenario = new Scenario(file);
+			if(scenario.tls && keys == null)
+				keys = new LoadTestKeys();
+
+			Result result = run(scenario, keys);
+			System.out.println(result);
+
+			File baselineFile = new File(file.getParentFile(), scenario.name + ".baseline.properties");
+			if(updateBaseline || !baselineFile.exists()) {
+				result.store(baselineFile);
+				System.out.println("baseline written to " + baselineFile);
+			}
+			else {
+				Properties baseline = load(baselineFile);
+				ArrayList<String> regressions = result.compare(baseline, scenario.tolerance);
+				for(String r : regressions)
+					System.out.println("REGRESSION " + scenario.name + ": " + r);
+				if(regressions.isEmpty())
+					System.out.println("no regression against " + baselineFile);
+				regressed |= !regressions.isEmpty();
+			}
+			System.out.println();
+		}
+
+		System.exit(regressed ? 1 : 0);
+	}
+
+	/**
+	 * One load test run as read from a properties file.
+	 */
+	static final class Scenario {
+
+		final String name;
+		final long warmupMillis;
+		final long durationMillis;
+		final int users;
+		final boolean tls;
+		final int interactiveWorkers;
+		final int bulkWorkers;
+		final int retries;
+		final int[] mix = new int[MODES.length];
+		final int jsonItems;
+		final int fileBytes;
+		final int uploadBytes;
+		final int sizeUrls;
+		final int serverThreads;
+		final long latencyMillis;
+		final long latencyJitterMillis;
+		final long bytesPerSecond;
+		final double errorRate;
+		final double tolerance;
+
+		Scenario(File file) throws IOException {
+			Properties p = load(file);
+			String fileName = file.getName();
+			name = fileName.endsWith(".properties") ? fileName.substring(0, fileName.length() - ".properties".length()) : fileName;
+			warmupMillis = (long) (Double.parseDouble(p.getProperty("warmup", "3")) * 1000);
+			durationMillis = (long) (Double.parseDouble(p.getProperty("duration", "15")) * 1000);
+			users = Integer.parseInt(p.getProperty("users", "8"));
+			tls = Boolean.parseBoolean(p.getProperty("tls", "false"));
+			interactiveWorkers = Integer.parseInt(p.getProperty("interactiveWorkers", Integer.toString(RESTfulClient.DEFAULT_INTERACTIVE_WORKER_COUNT)));
+			bulkWorkers = Integer.parseInt(p.getProperty("bulkWorkers", Integer.toString(RESTfulClient.DEFAULT_BULK_WORKER_COUNT)));
+			retries = Integer.parseInt(p.getProperty("retries", "0"));
+			int total = 0;
+			for(int i = 0; i < MODES.length; ++i) {
+				mix[i] = Integer.parseInt(p.getProperty("mix." + MODES[i], "0"));
+				total += mix[i];
+			}
+			if(total <= 0)
+				throw new IllegalArgumentException(file + ": no mix.* weights given");
+			jsonItems = Integer.parseInt(p.getProperty("jsonItems", "20"));
+			fileBytes = Integer.parseInt(p.getProperty("fileBytes", "65536"));
+			uploadBytes = Integer.parseInt(p.getProperty("uploadBytes", "65536"));
+			sizeUrls = Integer.parseInt(p.getProperty("sizeUrls", "3"));
+			serverThreads = Integer.parseInt(p.getProperty("server.threads", "32"));
+			latencyMillis = Long.parseLong(p.getProperty("server.latencyMillis", "0"));
+			latencyJitterMillis = Long.parseLong(p.getProperty("server.latencyJitterMillis", "0"));
+			bytesPerSecond = Long.parseLong(p.getProperty("server.bytesPerSecond", "0"));
+			errorRate = Double.parseDouble(p.getProperty("server.errorRate", "0"));
+			tolerance = Double.parseDouble(p.getProperty("tolerance", "0.25"));
+		}
+
+		int pickMode(Random random) {
+			int total = 0;
+			for(int w : mix)
+				total += w;
+			int r = random.nextInt(total);
+			for(int i = 0; i < mix.length; ++i) {
+				r -= mix[i];
+				if(r < 0)
+					return i;
+			}
+			return mix.length - 1;
+		}
+	}
+
+	/**
+	 * Latencies and errors of one call type.
+	 */
+	static final class ModeStats {
+
+		private long[] mLatencies = new long[1024]; // micros
+		private int mCount;
+		private long mErrors;
+
+		synchronized void add(long micros) {
+			if(mCount == mLatencies.length)
+				mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+			mLatencies[mCount++] = micros;
+		}
+
+		synchronized void error() {
+			++mErrors;
+		}
+
+		synchronized int getCount() {
+			return mCount;
+		}
+
+		synchronized long getErrors() {
+			return mErrors;
+		}
+
+		/**
+		 * @return The given percentile in milliseconds, nearest-rank, or 0 without samples.
+		 */
+		synchronized double getPercentileMillis(double percentile) {
+			if(mCount == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(mLatencies, mCount);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+			return sorted[Math.max(0, Math.min(mCount, rank) - 1)] / 1000.0;
+		}
+	}
+
+	static final class Result {
+
+		final Scenario scenario;
+		final LinkedHashMap<String, ModeStats> stats = new LinkedHashMap<String, ModeStats>();
+		RESTfulMetrics.Snapshot clientMetrics;
+		long injectedErrors;
+
+		Result(Scenario scenario) {
+			this.scenario = scenario;
+			for(String m : MODES)
+				stats.put(m, new ModeStats());
+		}
+
+		double getThroughput(ModeStats s) {
+			return (s.getCount() + s.getErrors()) * 1000.0 / scenario.durationMillis;
+		}
+
+		Properties toProperties() {
+			Properties p = new Properties();
+			for(Map.Entry<String, ModeStats> e : stats.entrySet()) {
+				ModeStats s = e.getValue();
+				if(s.getCount() == 0)
+					continue;
+				p.setProperty(e.getKey() + ".throughput", format(getThroughput(s)));
+				p.setProperty(e.getKey() + ".p50", format(s.getPercentileMillis(50)));
+				p.setProperty(e.getKey() + ".p95", format(s.getPercentileMillis(95)));
+				p.setProperty(e.getKey() + ".p99", format(s.getPercentileMillis(99)));
+			}
+			return p;
+		}
+
+		void store(File file) throws IOException {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				toProperties().store(out, "load test baseline of " + scenario.name + ", throughput in calls/s, latencies in ms");
+			}
+			finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * @return Descriptions of all figures worse than the baseline by more than the tolerance.
+		 */
+		ArrayList<String> compare(Properties baseline, double tolerance) {
+			ArrayList<String> regressions = new ArrayList<String>();
+			Properties current = toProperties();
+			for(String key : baseline.stringPropertyNames()) {
+				double was = Double.parseDouble(baseline.getProperty(key));
+				String now = current.getProperty(key);
+				if(now == null) {
+					regressions.add(key + " missing, was " + format(was));
+					continue;
+				}
+				double is = Double.parseDouble(now);
+				if(key.endsWith(".throughput")) {
+					if(is < was * (1 - tolerance))
+						regressions.add(key + " " + format(is) + " calls/s, was " + format(was));
+				}
+				else if(is > Math.max(was * (1 + tolerance), was + LATENCY_SLACK_MILLIS)) {
+					regressions.add(key + " " + format(is) + " ms, was " + format(was));
+				}
+			}
+			return regressions;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.ROOT, "scenario %s: %s, %d users, %d s, %d injected errors%n", scenario.name,
+					scenario.tls ? "https" : "http", scenario.users, scenario.durationMillis / 1000, injectedErrors));
+			sb.append(String.format(Locale.ROOT, "%-14s %8s %7s %9s %9s %9s %9s%n", "mode", "calls", "errors", "calls/s", "p50 ms", "p95 ms", "p99 ms"));
+			for(Map.Entry<String, ModeStats> e : stats.entrySet()) {
+				ModeStats s = e.getValue();
+				if(s.getCount() == 0 && s.getErrors() == 0)
+					continue;
+				sb.append(String.format(Locale.ROOT, "%-14s %8d %7d %9.1f %9.2f %9.2f %9.2f%n", e.getKey(), s.getCount(), s.getErrors(),
+						getThroughput(s), s.getPercentileMillis(50), s.getPercentileMillis(95), s.getPercentileMillis(99)));
+			}
+			sb.append("client metrics: ").append(clientMetrics);
+			return sb.toString();
+		}
+	}
+
+	static Result run(final Scenario scenario, LoadTestKeys keys) throws Exception {
+		final LoadTestServer server = new LoadTestServer(scenario.tls ? keys.createServerContext() : null, scenario.serverThreads,
+				scenario.latencyMillis, scenario.latencyJitterMillis, scenario.bytesPerSecond, scenario.errorRate);
+		server.start();
+
+		final RESTfulClient client;
+		if(scenario.tls) {
+			// the BKS keystore is handed over the way an app's res/raw resource would be
+			final byte[] bks = keys.getClientBks();
+			Context ctx = new Context() {
+				@Override
+				public Resources getResources() {
+					return new Resources() {
+						@Override
+						public InputStream openRawResource(int id) {
+							return new ByteArrayInputStream(bks);
+						}
+					};
+				}
+			};
+			client = new RESTfulClient(ctx, 1, LoadTestKeys.PASSWORD, false, scenario.interactiveWorkers, scenario.bulkWorkers);
+		}
+		else {
+			client = new RESTfulClient(null, 0, null, false, scenario.interactiveWorkers, scenario.bulkWorkers);
+		}
+		if(scenario.retries > 0)
+			client.setRetryPolicy(new RESTfulRetryPolicy(scenario.retries + 1, 50, 1000, false));
+
+		final String base = (scenario.tls ? "https" : "http") + "://localhost:" + server.getPort();
+		final File downloadDir = createTempDir();
+		final byte[] upload = new byte[scenario.uploadBytes];
+		new Random(1).nextBytes(upload);
+
+		final Result result = new Result(scenario);
+		final AtomicLong sequence = new AtomicLong();
+		final long start = System.currentTimeMillis();
+		final long measureFrom = start + scenario.warmupMillis;
+		final long end = measureFrom + scenario.durationMillis;
+
+		Thread[] users = new Thread[scenario.users];
+		for(int u = 0; u < users.length; ++u) {
+			final int user = u;
+			users[u] = new Thread("LoadTestUser-" + u) {
+				@Override
+				public void run() {
+					Random random = new Random(user);
+					Handler handler = new Handler();
+					File download = new File(downloadDir, "download-" + user);
+					try {
+						long now;
+						while((now = System.currentTimeMillis()) < end) {
+							int mode = scenario.pickMode(random);
+							// unique urls, so calls are neither coalesced nor answered from the size cache
+							long seq = sequence.incrementAndGet();
+							long issued = System.nanoTime();
+							boolean ok = call(client, handler, base, seq, mode, scenario, download, upload);
+							if(now < measureFrom)
+								continue;
+							ModeStats stats = result.stats.get(MODES[mode]);
+							if(ok)
+								stats.add((System.nanoTime() - issued) / 1000);
+							else
+								stats.error();
+						}
+					}
+					catch(InterruptedException e) {
+						// stop
+					}
+				}
+			};
+			users[u].start();
+		}
+		for(Thread t : users)
+			t.join();
+
+		result.clientMetrics = client.getMetrics().snapshot();
+		result.injectedErrors = server.getInjectedErrors();
+		client.quit();
+		server.stop();
+		for(File f : downloadDir.listFiles())
+			f.delete();
+		downloadDir.delete();
+		return result;
+	}
+
+	/**
+	 * Issues one call and waits for its completion.
+	 * @return Whether the call succeeded.
+	 */
+	private static boolean call(RESTfulClient client, Handler handler, String base, long seq, int mode,
+								Scenario scenario, File download, byte[] upload) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final boolean[] ok = new boolean[1];
+
+		switch (mode) {
+			case 0:
+				client.getJSON(handler, base + "/json?items=" + scenario.jsonItems + "&n=" + seq, new RESTfulInterface.OnGetJSONCompleteListener() {
+					@Override
+					public void onComplete(JSONObject returned) {
+						ok[0] = returned != null;
+						done.countDown();
+					}
+				});
+				break;
+			case 1:
+				client.getFile(handler, base + "/file?size=" + scenario.fileBytes + "&n=" + seq, download.getPath(), null,
+						new RESTfulInterface.OnGetFileCompleteListener() {
+							@Override
+							public void onComplete(String returned) {
+								ok[0] = returned != null;
+								done.countDown();
+							}
+						});
+				break;
+			case 2:
+				client.postMultipart(handler, base + "/upload?n=" + seq,
+						new InputStream[] { new ByteArrayInputStream(upload) },
+						new String[] { "application/octet-stream" },
+						new String[] { "upload.bin" },
+						null,
+						new RESTfulInterface.OnPostMultipartCompleteListener() {
+							@Override
+							public void onComplete(String returned) {
+								ok[0] = returned != null;
+								done.countDown();
+							}
+						});
+				break;
+			default:
+				ArrayList<String> urls = new ArrayList<String>();
+				for(int i = 0; i < scenario.sizeUrls; ++i)
+					urls.add(base + "/file?size=" + (scenario.fileBytes + i) + "&n=" + seq);
+				client.getSize(handler, urls, new RESTfulInterface.OnGetSizeCompleteListener() {
+					@Override
+					public void onComplete(long accumulateSize) {
+						ok[0] = accumulateSize >= 0;
+						done.countDown();
+					}
+				});
+				break;
+		}
+
+		return done.await(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && ok[0];
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return p;
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("restful-loadtest", "");
+		if(!dir.delete() || !dir.mkdir())
+			throw new IOException("cannot create " + dir);
+		return dir;
+	}
+
+	private static String format(double d) {
+		return String.format(Locale.ROOT, "%.2f", d);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Test keys for the TLS runs, made fresh for each run so no key material lives in the repository.
+ * A self-signed certificate for localhost goes into a JKS keystore for the server and into a BKS
+ * keystore for the client, the latter loaded just like an app's res/raw keystore is.
+ */
+class LoadTestKeys {
+
+	static final String PASSWORD = "loadtest";
+
+	private final KeyStore mServerKeyStore;
+	private final byte[] mClientBks;
+
+	LoadTestKeys() throws Exception {
+		// the client loads its keystore as "BKS", which the desktop JVM needs Bouncy Castle for
+		if(Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+			Security.addProvider(new BouncyCastleProvider());
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair keyPair = kpg.generateKeyPair();
+
+		long now = System.currentTimeMillis();
+		X500Name name = new X500Name("CN=localhost, O=libRESTfulClient load test");
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now),
+				new Date(now - 3600000L), new Date(now + 24 * 3600000L), name, keyPair.getPublic());
+		builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+		builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName[] {
+				new GeneralName(GeneralName.dNSName, "localhost"),
+				new GeneralName(GeneralName.iPAddress, "127.0.0.1") }));
+		X509Certificate cert = new JcaX509CertificateConverter()
+				.getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+		mServerKeyStore = KeyStore.getInstance("JKS");
+		mServerKeyStore.load(null, null);
+		mServerKeyStore.setKeyEntry("server", keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[] { cert });
+
+		KeyStore bks = KeyStore.getInstance("BKS", BouncyCastleProvider.PROVIDER_NAME);
+		bks.load(null, null);
+		bks.setCertificateEntry("loadtest", cert);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bks.store(out, PASSWORD.toCharArray());
+		mClientBks = out.toByteArray();
+	}
+
+	SSLContext createServerContext() throws Exception {
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(mServerKeyStore, PASSWORD.toCharArray());
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, null);
+		return ctx;
+	}
+
+	/**
+	 * @return The client's BKS keystore, as it would be stored in res/raw.
+	 */
+	byte[] getClientBks() {
+		return mClientBks.clone();
+	}
+}
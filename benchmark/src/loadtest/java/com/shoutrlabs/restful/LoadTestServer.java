@@ -0,0 +1,250 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * In-process HTTP(S) server the load test runs against. Serves
+ *
+ *   GET  /json?items=N   a JSON object with N items
+ *   GET  /file?size=N    N bytes, HEAD gives the size only
+ *   POST /upload         reads the body, answers "ok"
+ *
+ * Every answer can be delayed, throttled to a bandwidth and replaced by a 503 at a given rate.
+ */
+class LoadTestServer {
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+	private final long mLatencyMillis;
+	private final long mLatencyJitterMillis;
+	private final long mBytesPerSecond;
+	private final double mErrorRate;
+	private final Random mRandom = new Random(42);
+	private final AtomicLong mInjectedErrors = new AtomicLong();
+
+	/**
+	 * @param sslContext Context holding the server key, null for plain HTTP.
+	 * @param threads Number of threads serving requests.
+	 * @param latencyMillis Delay before each answer.
+	 * @param latencyJitterMillis Random extra delay of up to this much.
+	 * @param bytesPerSecond Bandwidth of each answer body, 0 for unlimited.
+	 * @param errorRate Share of requests answered with 503, 0 to 1.
+	 */
+	LoadTestServer(SSLContext sslContext, int threads, long latencyMillis, long latencyJitterMillis,
+				   long bytesPerSecond, double errorRate) throws IOException {
+		mLatencyMillis = latencyMillis;
+		mLatencyJitterMillis = latencyJitterMillis;
+		mBytesPerSecond = bytesPerSecond;
+		mErrorRate = errorRate;
+
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		if(sslContext != null) {
+			HttpsServer server = HttpsServer.create(address, 0);
+			server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+			mServer = server;
+		}
+		else {
+			mServer = HttpServer.create(address, 0);
+		}
+
+		mServer.createContext("/json", new FaultyHandler() {
+			@Override
+			void serve(HttpExchange exchange) throws IOException {
+				int items = intParam(exchange, "items", 10);
+				StringBuilder sb = new StringBuilder("{\"items\":[");
+				for(int i = 0; i < items; ++i) {
+					if(i > 0)
+						sb.append(',');
+					sb.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i)
+							.append("\",\"tags\":[\"a\",\"b\"],\"score\":").append(i * 0.5).append('}');
+				}
+				sb.append("]}");
+				send(exchange, 200, "application/json", sb.toString().getBytes("UTF-8"));
+			}
+		});
+
+		mServer.createContext("/file", new FaultyHandler() {
+			@Override
+			void serve(HttpExchange exchange) throws IOException {
+				int size = intParam(exchange, "size", 1024);
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				if("HEAD".equals(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().set("Content-Length", Integer.toString(size));
+					exchange.sendResponseHeaders(200, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = new byte[size];
+				for(int i = 0; i < size; ++i)
+					body[i] = (byte) i;
+				send(exchange, 200, null, body);
+			}
+		});
+
+		mServer.createContext("/upload", new FaultyHandler() {
+			@Override
+			void serve(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				byte[] buf = new byte[CHUNK_SIZE];
+				while(in.read(buf) != -1)
+					;
+				send(exchange, 200, "text/plain", "ok".getBytes("UTF-8"));
+			}
+		});
+
+		mExecutor = Executors.newFixedThreadPool(threads);
+		mServer.setExecutor(mExecutor);
+	}
+
+	void start() {
+		mServer.start();
+	}
+
+	void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	int getPort() {
+		return mServer.getAddress().getPort();
+	}
+
+	long getInjectedErrors() {
+		return mInjectedErrors.get();
+	}
+
+	private abstract class FaultyHandler implements HttpHandler {
+
+		abstract void serve(HttpExchange exchange) throws IOException;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				long delay;
+				boolean fail;
+				synchronized (mRandom) {
+					delay = mLatencyMillis + (mLatencyJitterMillis > 0 ? (long) (mRandom.nextDouble() * mLatencyJitterMillis) : 0);
+					fail = mRandom.nextDouble() < mErrorRate;
+				}
+				if(delay > 0)
+					Thread.sleep(delay);
+
+				if(fail) {
+					mInjectedErrors.incrementAndGet();
+					send(exchange, 503, "text/plain", "injected error".getBytes("UTF-8"));
+					return;
+				}
+				serve(exchange);
+			}
+			catch(InterruptedException e) {
+				exchange.close();
+			}
+			catch(IOException e) {
+				// client went away
+				exchange.close();
+			}
+		}
+	}
+
+	private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		if(contentType != null)
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+		if("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			long start = System.nanoTime();
+			for(int off = 0; off < body.length; off += CHUNK_SIZE) {
+				int len = Math.min(CHUNK_SIZE, body.length - off);
+				out.write(body, off, len);
+				if(mBytesPerSecond > 0) {
+					// sleep until the bytes sent so far are due
+					long dueNanos = (off + len) * 1000000000L / mBytesPerSecond;
+					long aheadMillis = (dueNanos - (System.nanoTime() - start)) / 1000000;
+					if(aheadMillis > 0) {
+						try {
+							Thread.sleep(aheadMillis);
+						}
+						catch(InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}
+		finally {
+			out.close();
+			exchange.close();
+		}
+	}
+
+	private static int intParam(HttpExchange exchange, String name, int fallback) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if(query == null)
+			return fallback;
+		for(String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if(eq > 0 && pair.substring(0, eq).equals(name)) {
+				try {
+					return Integer.parseInt(pair.substring(eq + 1));
+				}
+				catch(NumberFormatException e) {
+					return fallback;
+				}
+			}
+		}
+		return fallback;
+	}
+}
@@ -0,0 +1,11 @@
+package android.content;
+
+import android.content.res.Resources;
+
+/**
+ * Stand-in for benchmarks.
+ */
+public abstract class Context {
+
+	public abstract Resources getResources();
+}
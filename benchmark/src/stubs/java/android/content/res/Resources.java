@@ -0,0 +1,11 @@
+package android.content.res;
+
+import java.io.InputStream;
+
+/**
+ * Stand-in for benchmarks.
+ */
+public abstract class Resources {
+
+	public abstract InputStream openRawResource(int id);
+}
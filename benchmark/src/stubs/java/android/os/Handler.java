@@ -0,0 +1,33 @@
+package android.os;
+
+/**
+ * Stand-in for benchmarks: runs messages right away on the sending thread, so dispatch costs are
+ * measured without a Looper hop.
+ */
+public class Handler {
+
+	public Handler() {
+	}
+
+	public Handler(Looper looper) {
+	}
+
+	public final boolean sendMessage(Message msg) {
+		if(msg.callback != null)
+			msg.callback.run();
+		msg.recycle();
+		return true;
+	}
+
+	public final boolean post(Runnable r) {
+		r.run();
+		return true;
+	}
+
+	public final void removeCallbacksAndMessages(Object token) {
+	}
+
+	public final Looper getLooper() {
+		return null;
+	}
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/**
+ * Stand-in for benchmarks.
+ */
+public class Looper {
+
+	public static Looper getMainLooper() {
+		return null;
+	}
+}
@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * Stand-in for benchmarks.
+ */
+public final class Message {
+
+	public int what;
+	public Object obj;
+	Runnable callback;
+
+	public static Message obtain(Handler h, Runnable callback) {
+		Message m = new Message();
+		m.callback = callback;
+		return m;
+	}
+
+	public void recycle() {
+		callback = null;
+		obj = null;
+	}
+}
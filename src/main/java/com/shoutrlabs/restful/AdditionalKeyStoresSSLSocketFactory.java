@@ -39,18 +39,23 @@ import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import org.apache.http.conn.scheme.HostNameResolver;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 
 /**
@@ -58,21 +63,42 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
  * the default KeyStore
  */
 public class AdditionalKeyStoresSSLSocketFactory extends SSLSocketFactory {
+
+    /**
+     * Number of TLS sessions kept for resumption, i.e. roughly the number of hosts.
+     */
+    public static final int SESSION_CACHE_SIZE = 32;
+
+    /**
+     * Time a TLS session may be resumed for.
+     */
+    public static final int SESSION_TIMEOUT_SECONDS = 4 * 60 * 60;
+
     protected SSLContext sslContext = SSLContext.getInstance("TLS");
+    private final javax.net.ssl.SSLSocketFactory socketFactory;
 
     public AdditionalKeyStoresSSLSocketFactory(KeyStore keyStore) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
-        super(null, null, null, null, null, null);
+        super(null, null, null, null, null, (HostNameResolver) null);
         sslContext.init(null, new TrustManager[]{new AdditionalKeyStoresTrustManager(keyStore)}, null);
+
+        // resuming a session saves a full handshake on new connections to a host we talked to before
+        final SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if( sessions != null ) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+
+        socketFactory = sslContext.getSocketFactory();
     }
 
     @Override
     public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
-        return sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+        return socketFactory.createSocket(socket, host, port, autoClose);
     }
 
     @Override
     public Socket createSocket() throws IOException {
-        return sslContext.getSocketFactory().createSocket();
+        return socketFactory.createSocket();
     }
 
 
@@ -82,8 +108,28 @@ public class AdditionalKeyStoresSSLSocketFactory extends SSLSocketFactory {
      */
     public static class AdditionalKeyStoresTrustManager implements X509TrustManager {
 
+        /**
+         * Number of accepted server certificates remembered, see checkServerTrusted().
+         */
+        public static final int MAX_ACCEPTED_CHAINS = 64;
+
+        /**
+         * Time an accepted server certificate is trusted without validating its chain again.
+         */
+        public static final long ACCEPTED_CHAIN_TTL_MILLIS = 60 * 60 * 1000;
+
         protected ArrayList<X509TrustManager> x509TrustManagers = new ArrayList<X509TrustManager>();
 
+        private final X509Certificate[] acceptedIssuers;
+
+        // leaf certificate fingerprint and auth type -> System.nanoTime() of acceptance, least recently used first
+        private final LinkedHashMap<String, Long> acceptedChains = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_ACCEPTED_CHAINS;
+            }
+        };
+
 
         protected AdditionalKeyStoresTrustManager(KeyStore... additionalkeyStores) {
             final ArrayList<TrustManagerFactory> factories = new ArrayList<TrustManagerFactory>();
@@ -119,6 +165,10 @@ public class AdditionalKeyStoresSSLSocketFactory extends SSLSocketFactory {
             if( x509TrustManagers.size()==0 )
                 throw new RuntimeException("Couldn't find any X509TrustManagers");
 
+            final ArrayList<X509Certificate> issuers = new ArrayList<X509Certificate>();
+            for( X509TrustManager tm : x509TrustManagers )
+                issuers.addAll(Arrays.asList(tm.getAcceptedIssuers()));
+            acceptedIssuers = issuers.toArray(new X509Certificate[issuers.size()]);
         }
 
         /*
@@ -130,25 +180,73 @@ public class AdditionalKeyStoresSSLSocketFactory extends SSLSocketFactory {
         }
 
         /*
-         * Loop over the trustmanagers until we find one that accepts our server
+         * Loop over the trustmanagers until we find one that accepts our server.
+         * A server certificate accepted within ACCEPTED_CHAIN_TTL_MILLIS is accepted again as long as it
+         * is valid, without validating its chain. The host name is still verified for every connection.
          */
         public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            final String key = chain != null && chain.length > 0 ? authType + ":" + fingerprint(chain[0]) : null;
+
+            if( key != null ) {
+                final Long acceptedAt;
+                synchronized (acceptedChains) {
+                    acceptedAt = acceptedChains.get(key);
+                }
+                if( acceptedAt != null && System.nanoTime() - acceptedAt < ACCEPTED_CHAIN_TTL_MILLIS * 1000000L ) {
+                    try {
+                        chain[0].checkValidity();
+                        return;
+                    } catch( CertificateException e ) {
+                        // expired, validate again to fail properly
+                    }
+                }
+            }
+
             for( X509TrustManager tm : x509TrustManagers ) {
                 try {
                     tm.checkServerTrusted(chain,authType);
+                    if( key != null ) {
+                        synchronized (acceptedChains) {
+                            acceptedChains.put(key, System.nanoTime());
+                        }
+                    }
                     return;
                 } catch( CertificateException e ) {
                     // ignore
                 }
             }
+
+            if( key != null ) {
+                synchronized (acceptedChains) {
+                    acceptedChains.remove(key);
+                }
+            }
             throw new CertificateException();
         }
 
+        /*
+         * The issuers of all trustmanagers, collected once.
+         */
         public X509Certificate[] getAcceptedIssuers() {
-            final ArrayList<X509Certificate> list = new ArrayList<X509Certificate>();
-            for( X509TrustManager tm : x509TrustManagers )
-                list.addAll(Arrays.asList(tm.getAcceptedIssuers()));
-            return list.toArray(new X509Certificate[list.size()]);
+            return acceptedIssuers.clone();
+        }
+
+        /**
+         * @return Hex SHA-256 fingerprint of the certificate.
+         */
+        private static String fingerprint(X509Certificate cert) throws CertificateException {
+            final byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+            } catch( NoSuchAlgorithmException e ) {
+                throw new CertificateException(e);
+            }
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for( byte b : digest ) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
         }
     }
 
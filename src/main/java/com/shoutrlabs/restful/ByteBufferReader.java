@@ -0,0 +1,159 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads response bodies into ByteBuffers of exactly the body's size. Bodies of unknown length are
+ * backed by an array of up to twice their size. Bodies larger than a threshold go to a temp file
+ * which is then memory-mapped read-only, so they never sit whole on the heap.
+ */
+final class ByteBufferReader {
+
+	private ByteBufferReader() {
+	}
+
+	/**
+	 * Reads a stream to its end and closes it.
+	 * @param contentLength Announced length, -1 if unknown.
+	 * @param spillThreshold Bodies larger than this are mapped from a temp file.
+	 * @param spillDir Directory for temp files, null for the default temp directory.
+	 * @return The body with position 0 and limit at its end, null if the reading thread got interrupted.
+	 * @throws IOException Also if the body does not fit into a ByteBuffer.
+	 */
+	static ByteBuffer read(InputStream in, long contentLength, long spillThreshold, File spillDir) throws IOException {
+		try {
+			if(contentLength > Integer.MAX_VALUE)
+				throw new IOException("body of " + contentLength + " bytes is too large for a ByteBuffer");
+
+			if(contentLength > spillThreshold)
+				return spill(in, null, 0, spillDir);
+
+			if(contentLength >= 0) {
+				// filled directly from the stream, no intermediate copy
+				ByteBuffer bb = ByteBuffer.allocate((int)contentLength);
+				byte[] data = bb.array();
+				int pos = 0;
+				while(pos < data.length) {
+					int len = in.read(data, pos, data.length - pos);
+					if(len == -1)
+						break;
+					pos += len;
+					if(Thread.currentThread().isInterrupted()) // stop reading if thread got a pending interrupt
+						return null;
+				}
+				if(pos < data.length) { // body was shorter than announced
+					bb.limit(pos);
+					return bb.slice();
+				}
+				int extra = in.read();
+				if(extra == -1)
+					return bb;
+
+				// body is longer than announced, do not trust the length any further
+				byte[] head = new byte[data.length + 1];
+				System.arraycopy(data, 0, head, 0, data.length);
+				head[data.length] = (byte)extra;
+				return spill(in, head, head.length, spillDir);
+			}
+
+			// unknown length, e.g. a decompressed body: read straight into a growing array that is handed
+			// out as is, so the body is not copied once more at the end
+			final long maxHeapLength = Math.min(spillThreshold, Integer.MAX_VALUE - 9) + 1;
+			byte[] data = new byte[(int)Math.min(RESTfulBufferPool.MEDIUM, maxHeapLength)];
+			int pos = 0;
+			int len;
+			while((len = in.read(data, pos, data.length - pos)) != -1) {
+				pos += len;
+				if(Thread.currentThread().isInterrupted()) // stop reading if thread got a pending interrupt
+					return null;
+				if(pos > spillThreshold)
+					return spill(in, data, pos, spillDir);
+				if(pos == data.length) {
+					int grown = (int)Math.min(2L * data.length, maxHeapLength);
+					if(grown == data.length)
+						throw new IOException("body is too large for a ByteBuffer");
+					byte[] larger = new byte[grown];
+					System.arraycopy(data, 0, larger, 0, pos);
+					data = larger;
+				}
+			}
+			return ByteBuffer.wrap(data, 0, pos).slice();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes head and the rest of the stream to a temp file and maps it. The file is deleted right
+	 * away, the mapping stays valid until the buffer is garbage collected.
+	 */
+	private static ByteBuffer spill(InputStream in, byte[] head, int headLength, File spillDir) throws IOException {
+		File tmp = File.createTempFile("restful", ".tmp", spillDir);
+		try {
+			long size = headLength;
+			FileOutputStream out = new FileOutputStream(tmp);
+			byte[] buf = RESTfulBufferPool.acquire(RESTfulBufferPool.LARGE);
+			try {
+				if(headLength > 0)
+					out.write(head, 0, headLength);
+				int len;
+				while((len = in.read(buf)) != -1) {
+					out.write(buf, 0, len);
+					size += len;
+					if(size > Integer.MAX_VALUE)
+						throw new IOException("body is too large for a ByteBuffer");
+					if(Thread.currentThread().isInterrupted()) // stop reading if thread got a pending interrupt
+						return null;
+				}
+			} finally {
+				RESTfulBufferPool.release(buf);
+				out.close();
+			}
+
+			RandomAccessFile raf = new RandomAccessFile(tmp, "r");
+			try {
+				return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} finally {
+				raf.close();
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Transparent gzip and deflate handling for request and response bodies.
+ */
+class ContentEncoding {
+
+	/**
+	 * Value of the Accept-Encoding header for requests whose responses go through decode().
+	 */
+	static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	private ContentEncoding() {
+	}
+
+	/**
+	 * @return An entity decompressing the given one while reading, or the given one if it is not compressed.
+	 */
+	static HttpEntity decode(HttpEntity entity) {
+		if(entity == null)
+			return null;
+
+		Header ce = entity.getContentEncoding();
+		if(ce == null)
+			return entity;
+
+		String encoding = ce.getValue().trim();
+		if(encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+			return new DecompressingEntity(entity, true);
+		if(encoding.equalsIgnoreCase("deflate"))
+			return new DecompressingEntity(entity, false);
+		return entity;
+	}
+
+	/**
+	 * @return The given bytes, gzipped.
+	 */
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+		GZIPOutputStream gz = new GZIPOutputStream(bos);
+		gz.write(data);
+		gz.close();
+		return bos.toByteArray();
+	}
+
+
+	/**
+	 * Ends its inflater when closed. InflaterInputStream only does that for inflaters it created itself,
+	 * any other keeps its native memory until it is finalized.
+	 */
+	private static class EndingInflaterInputStream extends InflaterInputStream {
+
+		EndingInflaterInputStream(InputStream in, Inflater inflater) {
+			super(in, inflater, 8192);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+
+
+	private static class DecompressingEntity extends HttpEntityWrapper {
+
+		private final boolean mGzip;
+
+		DecompressingEntity(HttpEntity wrapped, boolean gzip) {
+			super(wrapped);
+			mGzip = gzip;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			InputStream in = wrappedEntity.getContent();
+			if(mGzip)
+				return new GZIPInputStream(in, 8192);
+
+			// "deflate" should be zlib-wrapped, but some servers send raw deflate data
+			in = new BufferedInputStream(in, 8192);
+			in.mark(2);
+			int cmf = in.read();
+			int flg = in.read();
+			in.reset();
+			boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+			return new EndingInflaterInputStream(in, new Inflater(!zlib));
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1; // not known before decompressing
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null; // we took care of it
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			InputStream in = getContent();
+			byte[] buf = RESTfulBufferPool.acquire(RESTfulBufferPool.MEDIUM);
+			try {
+				int len;
+				while((len = in.read(buf)) != -1)
+					out.write(buf, 0, len);
+			} finally {
+				RESTfulBufferPool.release(buf);
+				in.close();
+			}
+		}
+	}
+}
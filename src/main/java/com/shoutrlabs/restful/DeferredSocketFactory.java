@@ -0,0 +1,116 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.params.HttpParams;
+
+/**
+ * A socket factory that is built on a background thread, so that loading a keystore and setting up
+ * its SSLContext does not hold up the thread creating a client. Connections wait for it when they
+ * need it first. If building it fails, connections fail with an SSLException and its pool is dropped
+ * from RESTfulConnectionPool, so that clients created later try again.
+ */
+class DeferredSocketFactory implements LayeredSocketFactory {
+
+	private final FutureTask<LayeredSocketFactory> mFactory;
+
+	/**
+	 * Starts building the factory right away.
+	 * @param name Names the thread building the factory.
+	 * @param builder Builds the factory. Called once, on that thread.
+	 * @param trustKey Key of the pool using this factory.
+	 */
+	DeferredSocketFactory(String name, Callable<LayeredSocketFactory> builder, final String trustKey) {
+		mFactory = new FutureTask<LayeredSocketFactory>(builder) {
+			@Override
+			protected void done() {
+				try {
+					get();
+				} catch (Exception e) {
+					RESTfulConnectionPool.discard(trustKey, DeferredSocketFactory.this);
+				}
+			}
+		};
+		Thread t = new Thread(mFactory, "RESTfulKeyStoreLoader-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private LayeredSocketFactory get() throws IOException {
+		try {
+			return mFactory.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // the task is being cancelled
+			throw new InterruptedIOException("interrupted while waiting for the socket factory");
+		} catch (ExecutionException e) {
+			throw new SSLException("could not set up the socket factory", e.getCause());
+		}
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return get().createSocket();
+	}
+
+	@Override
+	public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+		return get().createSocket(socket, host, port, autoClose);
+	}
+
+	@Override
+	public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params)
+			throws IOException, UnknownHostException, ConnectTimeoutException {
+		return get().connectSocket(sock, host, port, localAddress, localPort, params);
+	}
+
+	@Override
+	public boolean isSecure(Socket sock) throws IllegalArgumentException {
+		try {
+			return get().isSecure(sock);
+		} catch (IOException e) {
+			// only asked about sockets the factory made, so it is there
+			throw new IllegalStateException(e);
+		}
+	}
+}
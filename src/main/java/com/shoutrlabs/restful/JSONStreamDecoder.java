@@ -0,0 +1,332 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decodes JSON into org.json objects while reading from the stream, without building an intermediate
+ * String of the whole body first. Values are typed like org.json does: Integer or Long for integral
+ * numbers, Double otherwise, Boolean, String and JSONObject.NULL.
+ */
+public class JSONStreamDecoder<T> implements RESTfulDecoder<T> {
+
+	/**
+	 * Decodes a top-level object.
+	 */
+	public static final JSONStreamDecoder<JSONObject> OBJECT = new JSONStreamDecoder<JSONObject>(JSONObject.class);
+
+	/**
+	 * Decodes a top-level array.
+	 */
+	public static final JSONStreamDecoder<JSONArray> ARRAY = new JSONStreamDecoder<JSONArray>(JSONArray.class);
+
+	/**
+	 * Decodes any top-level value, i.e. a JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL.
+	 */
+	public static final JSONStreamDecoder<Object> VALUE = new JSONStreamDecoder<Object>(Object.class);
+
+	private final Class<T> mType;
+
+	private JSONStreamDecoder(Class<T> type) {
+		mType = type;
+	}
+
+	@Override
+	public T decode(InputStream in, String charset) throws IOException, JSONException {
+		Parser p = new Parser(new InputStreamReader(in, charset));
+		Object value = p.nextValue();
+		if(p.nextClean() != -1)
+			throw p.syntaxError("trailing data");
+		if(!mType.isInstance(value))
+			throw new JSONException("expected " + mType.getSimpleName() + " but got " + (value != null ? value.getClass().getSimpleName() : "nothing"));
+		return mType.cast(value);
+	}
+
+
+	/**
+	 * A recursive descent parser over a Reader, doing its own buffering.
+	 */
+	private static class Parser {
+
+		private final Reader mReader;
+		private final char[] mBuf = new char[4096];
+		private int mPos;
+		private int mLimit;
+		private long mOffset; // of mBuf[0] in the stream, for error messages
+		private final StringBuilder mScratch = new StringBuilder();
+
+		Parser(Reader reader) {
+			mReader = reader;
+		}
+
+		private int peek() throws IOException {
+			if(mPos == mLimit) {
+				mOffset += mLimit;
+				mLimit = mReader.read(mBuf, 0, mBuf.length);
+				mPos = 0;
+				if(mLimit <= 0) {
+					mLimit = 0;
+					return -1;
+				}
+			}
+			return mBuf[mPos];
+		}
+
+		private int next() throws IOException {
+			int c = peek();
+			if(c != -1)
+				++mPos;
+			return c;
+		}
+
+		/**
+		 * @return The next non-whitespace character without consuming it, -1 at the end.
+		 */
+		int nextClean() throws IOException {
+			while(true) {
+				int c = peek();
+				if(c == ' ' || c == '\t' || c == '\n' || c == '\r')
+					++mPos;
+				else
+					return c;
+			}
+		}
+
+		JSONException syntaxError(String message) {
+			return new JSONException(message + " at character " + (mOffset + mPos));
+		}
+
+		Object nextValue() throws IOException, JSONException {
+			int c = nextClean();
+			switch (c) {
+				case -1:
+					throw syntaxError("end of input");
+				case '{':
+					++mPos;
+					return readObject();
+				case '[':
+					++mPos;
+					return readArray();
+				case '"':
+					++mPos;
+					return readString();
+				default:
+					return readLiteral();
+			}
+		}
+
+		private JSONObject readObject() throws IOException, JSONException {
+			JSONObject o = new JSONObject();
+			if(nextClean() == '}') {
+				++mPos;
+				return o;
+			}
+			while(true) {
+				if(nextClean() != '"')
+					throw syntaxError("expected name");
+				++mPos;
+				String name = readString();
+				if(nextClean() != ':')
+					throw syntaxError("expected ':'");
+				++mPos;
+				o.put(name, nextValue());
+
+				int c = nextClean();
+				++mPos;
+				if(c == '}')
+					return o;
+				if(c != ',')
+					throw syntaxError("expected ',' or '}'");
+			}
+		}
+
+		private JSONArray readArray() throws IOException, JSONException {
+			JSONArray a = new JSONArray();
+			if(nextClean() == ']') {
+				++mPos;
+				return a;
+			}
+			while(true) {
+				a.put(nextValue());
+
+				int c = nextClean();
+				++mPos;
+				if(c == ']')
+					return a;
+				if(c != ',')
+					throw syntaxError("expected ',' or ']'");
+			}
+		}
+
+		/**
+		 * Reads a string whose opening quote was consumed.
+		 */
+		private String readString() throws IOException, JSONException {
+			mScratch.setLength(0);
+			while(true) {
+				// copy unescaped runs in bulk
+				int start = mPos;
+				while(mPos < mLimit) {
+					char c = mBuf[mPos];
+					if(c == '"' || c == '\\')
+						break;
+					++mPos;
+				}
+				mScratch.append(mBuf, start, mPos - start);
+
+				int c = next();
+				if(c == -1)
+					throw syntaxError("unterminated string");
+				if(c == '"')
+					return mScratch.toString();
+				if(c == '\\')
+					mScratch.append(readEscape());
+				else
+					mScratch.append((char)c); // the scan above stopped at the end of the buffer
+			}
+		}
+
+		private char readEscape() throws IOException, JSONException {
+			int c = next();
+			switch (c) {
+				case 'b': return '\b';
+				case 't': return '\t';
+				case 'n': return '\n';
+				case 'f': return '\f';
+				case 'r': return '\r';
+				case '"':
+				case '\\':
+				case '/':
+					return (char)c;
+				case 'u':
+					int v = 0;
+					for(int i = 0; i < 4; ++i) {
+						int d = Character.digit(next(), 16);
+						if(d < 0)
+							throw syntaxError("invalid unicode escape");
+						v = (v << 4) | d;
+					}
+					return (char)v;
+				default:
+					throw syntaxError("invalid escape");
+			}
+		}
+
+		private Object readLiteral() throws IOException, JSONException {
+			mScratch.setLength(0);
+			while(true) {
+				int c = peek();
+				if(c == -1 || c == ',' || c == ']' || c == '}' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+					break;
+				mScratch.append((char)c);
+				++mPos;
+			}
+
+			String literal = mScratch.toString();
+			if(literal.length() == 0)
+				throw syntaxError("expected value");
+			if(literal.equals("null"))
+				return JSONObject.NULL;
+			if(literal.equals("true"))
+				return Boolean.TRUE;
+			if(literal.equals("false"))
+				return Boolean.FALSE;
+
+			// numbers, typed like org.json does. The parse methods accept more than JSON, e.g. "+1" or "NaN".
+			if(!isNumber(literal))
+				throw syntaxError("invalid literal " + literal);
+			if(literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+				try {
+					long l = Long.parseLong(literal);
+					if(l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE)
+						return Integer.valueOf((int)l);
+					return Long.valueOf(l);
+				} catch (NumberFormatException e) {
+					// too big, try as double
+				}
+			}
+			Double d = Double.valueOf(literal);
+			if(d.isInfinite())
+				throw syntaxError("number out of range " + literal);
+			return d;
+		}
+
+		/**
+		 * @return Whether s follows the JSON number grammar: -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+		 */
+		private static boolean isNumber(String s) {
+			final int n = s.length();
+			int i = 0;
+			if(i < n && s.charAt(i) == '-')
+				++i;
+			if(i == n)
+				return false;
+			if(s.charAt(i) == '0')
+				++i;
+			else if(!isDigit(s.charAt(i)))
+				return false;
+			else
+				while(i < n && isDigit(s.charAt(i)))
+					++i;
+			if(i < n && s.charAt(i) == '.') {
+				++i;
+				int start = i;
+				while(i < n && isDigit(s.charAt(i)))
+					++i;
+				if(i == start)
+					return false;
+			}
+			if(i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+				++i;
+				if(i < n && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+					++i;
+				int start = i;
+				while(i < n && isDigit(s.charAt(i)))
+					++i;
+				if(i == start)
+					return false;
+			}
+			return i == n;
+		}
+
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
+	}
+}
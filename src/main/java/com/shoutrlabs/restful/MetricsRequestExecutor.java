@@ -0,0 +1,158 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import android.os.SystemClock;
+
+/**
+ * Records connected, sent and first byte times of requests executed with a context carrying
+ * RESTfulRequestMetrics, see CONTEXT_METRICS. Requests without one are executed as usual.
+ */
+class MetricsRequestExecutor extends HttpRequestExecutor {
+
+	/**
+	 * HttpContext attribute holding the RESTfulRequestMetrics to record to.
+	 */
+	static final String CONTEXT_METRICS = "com.shoutrlabs.restful.metrics";
+
+	@Override
+	protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+		final RESTfulRequestMetrics metrics = (RESTfulRequestMetrics) context.getAttribute(CONTEXT_METRICS);
+		if(metrics == null)
+			return super.doSendRequest(request, conn, context);
+
+		// the connection is leased and open by now, the pool does not tell when it was leased
+		final HttpConnectionMetrics cm = conn.getMetrics();
+		final long sentBefore = cm.getSentBytesCount();
+		metrics.sending(SystemClock.uptimeMillis(), cm.getRequestCount() > 0);
+
+		HttpResponse response = super.doSendRequest(request, conn, context);
+		metrics.sent(SystemClock.uptimeMillis(), cm.getSentBytesCount() - sentBefore);
+		return response;
+	}
+
+	@Override
+	protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+		HttpResponse response = super.doReceiveResponse(request, conn, context);
+		final RESTfulRequestMetrics metrics = (RESTfulRequestMetrics) context.getAttribute(CONTEXT_METRICS);
+		if(metrics != null)
+			metrics.received(SystemClock.uptimeMillis(), response.getStatusLine().getStatusCode());
+		return response;
+	}
+
+	/**
+	 * Wraps the response's entity so that reading it records bytes and the last byte time.
+	 */
+	static void countResponse(HttpResponse response, RESTfulRequestMetrics metrics) {
+		HttpEntity entity = response.getEntity();
+		if(entity == null)
+			metrics.read(SystemClock.uptimeMillis(), 0, true);
+		else
+			response.setEntity(new CountingEntity(entity, metrics));
+	}
+
+	private static class CountingEntity extends HttpEntityWrapper {
+
+		private final RESTfulRequestMetrics mMetrics;
+
+		CountingEntity(HttpEntity wrapped, RESTfulRequestMetrics metrics) {
+			super(wrapped);
+			mMetrics = metrics;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(wrappedEntity.getContent()) {
+				private boolean mDone;
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					count(b < 0 ? -1 : 1);
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException {
+					int n = super.read(buffer, offset, count);
+					count(n);
+					return n;
+				}
+
+				@Override
+				public void close() throws IOException {
+					count(-1);
+					super.close();
+				}
+
+				private void count(int n) {
+					if(mDone)
+						return;
+					if(n < 0) {
+						mDone = true;
+						mMetrics.read(SystemClock.uptimeMillis(), 0, true);
+					}
+					else
+						mMetrics.read(0, n, false);
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			InputStream in = getContent();
+			byte[] buf = RESTfulBufferPool.acquire(RESTfulBufferPool.MEDIUM);
+			try {
+				int len;
+				while((len = in.read(buf)) != -1)
+					out.write(buf, 0, len);
+			} finally {
+				RESTfulBufferPool.release(buf);
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+/**
+ * State of a download to a file that can be resumed with HTTP Range requests, even across process
+ * restarts. Data goes to filename.part, validators and expected length to the filename.part.meta
+ * sidecar. Only a complete download is renamed to filename.
+ */
+class PartialDownload {
+
+	private static final String KEY_URL = "url";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_LENGTH = "length";
+
+	final File target;
+	final File part;
+	final File meta;
+
+	private String mUrl;
+	private String mEtag;
+	private String mLastModified;
+	private long mLength = -1;
+
+	PartialDownload(String filename) {
+		target = new File(filename);
+		part = new File(filename + ".part");
+		meta = new File(filename + ".part.meta");
+	}
+
+	/**
+	 * Loads the sidecar of an earlier attempt.
+	 * @return Number of bytes that can be resumed from, 0 if the download has to start over.
+	 */
+	long resumeOffset(String url) {
+		Properties p = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(meta);
+			p.load(in);
+		} catch (IOException e) {
+			return 0;
+		} finally {
+			closeQuietly(in);
+		}
+
+		if(!url.equals(p.getProperty(KEY_URL)) || !part.exists())
+			return 0;
+
+		mUrl = url;
+		mEtag = p.getProperty(KEY_ETAG);
+		mLastModified = p.getProperty(KEY_LAST_MODIFIED);
+		try {
+			mLength = Long.parseLong(p.getProperty(KEY_LENGTH, "-1"));
+		} catch (NumberFormatException e) {
+			mLength = -1;
+		}
+
+		return resumableOffset();
+	}
+
+	/**
+	 * @return Number of bytes in the part file that can be resumed from, 0 if there is no validator
+	 * to make sure the remote did not change meanwhile.
+	 */
+	long resumableOffset() {
+		return ifRangeValidator() != null ? part.length() : 0;
+	}
+
+	/**
+	 * Makes the given request continue at offset, but only if the remote is unchanged. Otherwise the
+	 * server answers with the full entity. Use an offset from resumableOffset(), which is only
+	 * non-zero if there is a validator for If-Range.
+	 */
+	void addRangeHeaders(HttpRequest request, long offset) {
+		request.setHeader("Range", "bytes=" + offset + "-");
+		final String validator = ifRangeValidator();
+		if(validator != null)
+			request.setHeader("If-Range", validator);
+	}
+
+	/**
+	 * Remembers validators and length of a 200 response, so that the download can be resumed later.
+	 */
+	void begin(String url, HttpResponse response, long length) throws IOException {
+		Header etag = response.getFirstHeader("ETag");
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		mUrl = url;
+		mEtag = etag != null ? etag.getValue() : null;
+		mLastModified = lastModified != null ? lastModified.getValue() : null;
+		mLength = length;
+
+		Properties p = new Properties();
+		p.setProperty(KEY_URL, mUrl);
+		if(mEtag != null)
+			p.setProperty(KEY_ETAG, mEtag);
+		if(mLastModified != null)
+			p.setProperty(KEY_LAST_MODIFIED, mLastModified);
+		p.setProperty(KEY_LENGTH, Long.toString(mLength));
+
+		OutputStream out = new FileOutputStream(meta);
+		try {
+			p.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return Total length of the remote entity, -1 if unknown.
+	 */
+	long length() {
+		return mLength;
+	}
+
+	/**
+	 * Opens the part file, appending if resuming.
+	 */
+	OutputStream open(boolean append) throws IOException {
+		File parent = target.getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+		return new FileOutputStream(part, append);
+	}
+
+	/**
+	 * Moves the complete part file to the target name and removes the sidecar.
+	 */
+	void complete() throws IOException {
+		target.delete();
+		if(!part.renameTo(target))
+			throw new IOException("could not rename " + part + " to " + target);
+		meta.delete();
+	}
+
+	/**
+	 * Removes all partial state.
+	 */
+	void discard() {
+		part.delete();
+		meta.delete();
+	}
+
+	/**
+	 * If-Range only works with strong validators.
+	 */
+	private String ifRangeValidator() {
+		if(mEtag != null && !mEtag.startsWith("W/"))
+			return mEtag;
+		return mLastModified;
+	}
+
+	/**
+	 * Parses a Content-Range header value like "bytes 100-199/1000" or "bytes *&#47;1000".
+	 * @return {first byte, total length}, -1 for unknown parts, or null if unparseable.
+	 */
+	static long[] parseContentRange(String value) {
+		if(value == null)
+			return null;
+		value = value.trim();
+		if(!value.startsWith("bytes"))
+			return null;
+		value = value.substring(5).trim();
+
+		int slash = value.indexOf('/');
+		if(slash < 0)
+			return null;
+		String range = value.substring(0, slash).trim();
+		String total = value.substring(slash + 1).trim();
+
+		try {
+			long first = -1;
+			if(!range.equals("*")) {
+				int dash = range.indexOf('-');
+				if(dash < 0)
+					return null;
+				first = Long.parseLong(range.substring(0, dash).trim());
+			}
+			return new long[] { first, total.equals("*") ? -1 : Long.parseLong(total) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void closeQuietly(InputStream in) {
+		if(in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Coalesces progress updates of one transfer into few callback messages. At most one message is
+ * pending on the callback handler at any time, and it reports the latest totals when it runs. A new
+ * message is only posted after a minimum interval or a minimum number of bytes since the last one.
+ *
+ * update() may be called from any thread, deliver() is called on the handler's thread.
+ */
+abstract class ProgressDispatcher {
+
+	private final Handler mHandler;
+	private final Object mToken;
+	private final long mMinIntervalMillis;
+	private final long mMinBytes;
+
+	private long mLatestTotal;
+	private long mLatestExpected;
+	private long mPostedTotal; // latest total at the time the last message was posted
+	private long mDeliveredTotal; // total of the last delivered update
+	private long mPostedAt = -1;
+	private boolean mPending;
+
+	private final Runnable mDeliverRunnable = new Runnable() {
+		@Override
+		public void run() {
+			final long total, expected, delta;
+			synchronized (ProgressDispatcher.this) {
+				mPending = false;
+				total = mLatestTotal;
+				expected = mLatestExpected;
+				delta = total - mDeliveredTotal;
+				mDeliveredTotal = total;
+			}
+			deliver(delta, total, expected);
+		}
+	};
+
+	/**
+	 * @param handler Handler to deliver on.
+	 * @param token Put into the obj field of posted messages, so they can be removed by token.
+	 * @param minIntervalMillis Minimum time between two messages.
+	 * @param minBytes A message is also posted before minIntervalMillis passed if this many bytes were
+	 *                 transferred since the last one. 0 or less disables this.
+	 */
+	ProgressDispatcher(Handler handler, Object token, long minIntervalMillis, long minBytes) {
+		mHandler = handler;
+		mToken = token;
+		mMinIntervalMillis = minIntervalMillis;
+		mMinBytes = minBytes;
+	}
+
+	/**
+	 * Called on the handler's thread with the latest totals.
+	 * @param delta Bytes transferred since the last delivered update.
+	 * @param total Bytes transferred in total.
+	 * @param expected Expected total bytes, -1 if unknown.
+	 */
+	abstract void deliver(long delta, long total, long expected);
+
+	/**
+	 * Records new totals, posting a message if none is pending and enough time or bytes passed.
+	 */
+	synchronized void update(long total, long expected) {
+		mLatestTotal = total;
+		mLatestExpected = expected;
+
+		if(mPending || mHandler == null)
+			return;
+
+		long now = SystemClock.uptimeMillis();
+		if(mPostedAt >= 0
+				&& now - mPostedAt < mMinIntervalMillis
+				&& (mMinBytes <= 0 || total - mPostedTotal < mMinBytes))
+			return;
+
+		post(now);
+	}
+
+	/**
+	 * Makes sure the latest totals get delivered, e.g. at the end of a transfer.
+	 */
+	synchronized void flush() {
+		if(mPending || mHandler == null || (mLatestTotal == mPostedTotal && mPostedAt >= 0))
+			return;
+		post(SystemClock.uptimeMillis());
+	}
+
+	private void post(long now) {
+		mPending = true;
+		mPostedAt = now;
+		mPostedTotal = mLatestTotal;
+		Message m = Message.obtain(mHandler, mDeliverRunnable);
+		m.obj = mToken;
+		mHandler.sendMessage(m);
+	}
+}
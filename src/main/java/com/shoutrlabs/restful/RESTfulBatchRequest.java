@@ -0,0 +1,90 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import org.json.JSONObject;
+
+/**
+ * One request of a batch, see RESTfulClient.batch(). Its result in the batch's result array has the
+ * type the single call would deliver: JSONObject for getJSON, String for getString and postJSON,
+ * byte[] for getRawData and the decoder's type for getDecoded. Failed requests have a null result.
+ */
+public final class RESTfulBatchRequest {
+
+	static final int GET_JSON = 0;
+	static final int GET_STRING = 1;
+	static final int GET_RAWDATA = 2;
+	static final int GET_DECODED = 3;
+	static final int POST_JSON = 4;
+
+	final int kind;
+	final String url;
+	final RESTfulDecoder<?> decoder; // for GET_DECODED
+	final JSONObject json; // for POST_JSON
+
+	private RESTfulBatchRequest(int kind, String url, RESTfulDecoder<?> decoder, JSONObject json) {
+		if(url == null)
+			throw new IllegalArgumentException("url must not be null");
+		this.kind = kind;
+		this.url = url;
+		this.decoder = decoder;
+		this.json = json;
+	}
+
+	public static RESTfulBatchRequest getJSON(String url) {
+		return new RESTfulBatchRequest(GET_JSON, url, null, null);
+	}
+
+	public static RESTfulBatchRequest getString(String url) {
+		return new RESTfulBatchRequest(GET_STRING, url, null, null);
+	}
+
+	public static RESTfulBatchRequest getRawData(String url) {
+		return new RESTfulBatchRequest(GET_RAWDATA, url, null, null);
+	}
+
+	public static RESTfulBatchRequest getDecoded(String url, RESTfulDecoder<?> decoder) {
+		if(decoder == null)
+			throw new IllegalArgumentException("decoder must not be null");
+		return new RESTfulBatchRequest(GET_DECODED, url, decoder, null);
+	}
+
+	public static RESTfulBatchRequest postJSON(String url, JSONObject json) {
+		if(json == null)
+			throw new IllegalArgumentException("json must not be null");
+		return new RESTfulBatchRequest(POST_JSON, url, null, json);
+	}
+
+	@Override
+	public String toString() {
+		return (kind == POST_JSON ? "POST " : "GET ") + url;
+	}
+}
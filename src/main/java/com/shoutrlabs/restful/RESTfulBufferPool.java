@@ -0,0 +1,235 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * I/O buffers shared by all RESTfulClient instances of the process, so that transfers do not
+ * allocate fresh buffers for every read loop.
+ *
+ * Buffers come in a few fixed sizes. A bounded number of each size is kept, buffers returned to a
+ * full pool are left to the garbage collector.
+ */
+public final class RESTfulBufferPool {
+
+	/**
+	 * Read size for small bodies: error messages, JSON answers, strings.
+	 */
+	static final int SMALL = 4 * 1024;
+
+	/**
+	 * Read size for getRawData.
+	 */
+	static final int MEDIUM = 16 * 1024;
+
+	/**
+	 * Read size for file downloads and segments.
+	 */
+	static final int LARGE = 64 * 1024;
+
+	private static final int[] SIZES = { SMALL, MEDIUM, LARGE };
+
+	public static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 8;
+
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private static int sMaxBuffersPerSize = DEFAULT_MAX_BUFFERS_PER_SIZE;
+
+	private static final ArrayList<ArrayList<byte[]>> sFree = new ArrayList<ArrayList<byte[]>>(SIZES.length); // by index in SIZES
+	static {
+		for(int i = 0; i < SIZES.length; i++)
+			sFree.add(new ArrayList<byte[]>());
+	}
+
+	private static final AtomicLong sHits = new AtomicLong();
+	private static final AtomicLong sMisses = new AtomicLong();
+
+	private RESTfulBufferPool() {
+	}
+
+	/**
+	 * Sets how many idle buffers of each size are kept. 0 disables pooling.
+	 */
+	public static synchronized void configure(int maxBuffersPerSize) {
+		if(maxBuffersPerSize < 0)
+			throw new IllegalArgumentException("maxBuffersPerSize must not be negative");
+		sMaxBuffersPerSize = maxBuffersPerSize;
+		for(ArrayList<byte[]> free : sFree)
+			while(free.size() > maxBuffersPerSize)
+				free.remove(free.size() - 1);
+	}
+
+	/**
+	 * @return How many buffer requests were served from the pool.
+	 */
+	public static long getHits() {
+		return sHits.get();
+	}
+
+	/**
+	 * @return How many buffer requests had to allocate a new buffer.
+	 */
+	public static long getMisses() {
+		return sMisses.get();
+	}
+
+	/**
+	 * @return Idle buffers currently kept by the pool, all sizes.
+	 */
+	public static synchronized int getIdleBuffers() {
+		int n = 0;
+		for(ArrayList<byte[]> free : sFree)
+			n += free.size();
+		return n;
+	}
+
+	/**
+	 * Returns a buffer of exactly one of SMALL, MEDIUM or LARGE. Hand it back with release().
+	 */
+	static byte[] acquire(int size) {
+		int i = index(size);
+		synchronized (RESTfulBufferPool.class) {
+			ArrayList<byte[]> free = sFree.get(i);
+			if(!free.isEmpty()) {
+				sHits.incrementAndGet();
+				return free.remove(free.size() - 1);
+			}
+		}
+		sMisses.incrementAndGet();
+		return new byte[SIZES[i]];
+	}
+
+	/**
+	 * Returns a buffer obtained by acquire() to the pool. The caller must not use it afterwards.
+	 */
+	static void release(byte[] buf) {
+		if(buf == null)
+			return;
+		for(int i = 0; i < SIZES.length; i++) {
+			if(SIZES[i] == buf.length) {
+				synchronized (RESTfulBufferPool.class) {
+					ArrayList<byte[]> free = sFree.get(i);
+					if(free.size() < sMaxBuffersPerSize)
+						free.add(buf);
+				}
+				return;
+			}
+		}
+	}
+
+	private static int index(int size) {
+		for(int i = 0; i < SIZES.length; i++)
+			if(SIZES[i] == size)
+				return i;
+		throw new IllegalArgumentException("no pooled buffers of size " + size);
+	}
+
+	/**
+	 * Reads a stream to its end and closes it.
+	 * @param lengthHint Expected length, -1 if unknown. A known length is read into an exact size
+	 *                   array without intermediate copies.
+	 * @param readSize One of SMALL, MEDIUM or LARGE, the initial size for bodies of unknown length.
+	 * @return null if the reading thread got interrupted.
+	 */
+	static byte[] readFully(InputStream in, long lengthHint, int readSize) throws IOException {
+		int[] length = new int[1];
+		byte[] data = read(in, lengthHint, readSize, length);
+		if(data == null || length[0] == data.length)
+			return data;
+		byte[] exact = new byte[length[0]];
+		System.arraycopy(data, 0, exact, 0, length[0]);
+		return exact;
+	}
+
+	/**
+	 * Reads a stream to its end and closes it. The data is read straight into an array that grows as
+	 * needed, there is no intermediate buffer to copy from.
+	 * @param length Receives the number of bytes read, the returned array may be longer.
+	 * @return null if the reading thread got interrupted.
+	 */
+	private static byte[] read(InputStream in, long lengthHint, int readSize, int[] length) throws IOException {
+		try {
+			boolean known = lengthHint >= 0 && lengthHint <= MAX_ARRAY_LENGTH;
+			byte[] data = new byte[known ? (int)lengthHint : readSize];
+			int pos = 0;
+			while(true) {
+				if(pos == data.length) {
+					// full, the body either ends here or is longer than announced
+					int extra = in.read();
+					if(extra == -1)
+						break;
+					data = grow(data, pos, readSize);
+					data[pos++] = (byte)extra;
+				}
+				int len = in.read(data, pos, data.length - pos);
+				if(len == -1)
+					break;
+				pos += len;
+				if(Thread.currentThread().isInterrupted()) // stop reading if thread got a pending interrupt
+					return null;
+			}
+			length[0] = pos;
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] grow(byte[] data, int length, int readSize) throws IOException {
+		if(data.length >= MAX_ARRAY_LENGTH)
+			throw new IOException("body is too large for an array");
+		byte[] larger = new byte[(int)Math.min(Math.max(2L * data.length, readSize), MAX_ARRAY_LENGTH)];
+		System.arraycopy(data, 0, larger, 0, length);
+		return larger;
+	}
+
+	/**
+	 * Reads an entity, e.g. an error message, to a string using its charset or UTF-8.
+	 * @return null if there is no entity.
+	 */
+	static String toString(HttpEntity entity) throws IOException {
+		if(entity == null)
+			return null;
+		int[] length = new int[1];
+		byte[] data = read(entity.getContent(), entity.getContentLength(), SMALL, length);
+		if(data == null)
+			return null;
+		String charset = EntityUtils.getContentCharSet(entity);
+		return new String(data, 0, length[0], charset != null ? charset : "UTF-8");
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to a host that keeps failing, so that queued requests fail right away
+ * instead of each waiting out the connect and socket timeouts.
+ *
+ * A host's circuit opens when failureThreshold requests failed within windowMillis. Failures are
+ * I/O errors and 5xx answers. While open, requests to the host fail with RESTfulCircuitOpenException
+ * without touching the network. After openMillis the circuit is half-open: one probe request is let
+ * through, its success closes the circuit, its failure opens it again. Outcomes of other requests,
+ * sent before the circuit opened, do not change an open or half-open circuit.
+ *
+ * One breaker can be shared by several clients, see RESTfulClient.setCircuitBreaker().
+ */
+public class RESTfulCircuitBreaker {
+
+	public static final int STATE_CLOSED = 0;
+	public static final int STATE_OPEN = 1;
+	public static final int STATE_HALF_OPEN = 2;
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_WINDOW_MILLIS = 30000;
+	public static final long DEFAULT_OPEN_MILLIS = 15000;
+
+	private static class Host {
+		int state = STATE_CLOSED;
+		final LinkedList<Long> failures = new LinkedList<Long>(); // uptime of recent failures, oldest first
+		long openedAt;
+		boolean probing; // a half-open probe is in flight
+	}
+
+	private final int mFailureThreshold;
+	private final long mWindowMillis;
+	private final long mOpenMillis;
+	private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+
+	private static final Object NOT_PROBING = new Object(); // permit of requests that are no probe
+
+	public RESTfulCircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_WINDOW_MILLIS, DEFAULT_OPEN_MILLIS);
+	}
+
+	/**
+	 * @param failureThreshold Failures within the window that open a host's circuit.
+	 * @param windowMillis Length of the rolling failure window.
+	 * @param openMillis Time an open circuit waits before letting a probe through.
+	 */
+	public RESTfulCircuitBreaker(int failureThreshold, long windowMillis, long openMillis) {
+		if(failureThreshold < 1 || windowMillis <= 0 || openMillis < 0)
+			throw new IllegalArgumentException("invalid circuit breaker configuration");
+		mFailureThreshold = failureThreshold;
+		mWindowMillis = windowMillis;
+		mOpenMillis = openMillis;
+	}
+
+	/**
+	 * @return One of the STATE_* constants. Hosts never seen are closed.
+	 */
+	public synchronized int getState(String host) {
+		Host h = mHosts.get(host);
+		if(h == null)
+			return STATE_CLOSED;
+		if(h.state == STATE_OPEN && SystemClock.uptimeMillis() - h.openedAt >= mOpenMillis)
+			return STATE_HALF_OPEN;
+		return h.state;
+	}
+
+	/**
+	 * @return Failures of the host within the current window.
+	 */
+	public synchronized int getFailureCount(String host) {
+		Host h = mHosts.get(host);
+		if(h == null)
+			return 0;
+		expire(h, SystemClock.uptimeMillis());
+		return h.failures.size();
+	}
+
+	/**
+	 * Closes all circuits, e.g. when the network changed.
+	 */
+	public synchronized void reset() {
+		mHosts.clear();
+	}
+
+	/**
+	 * @return null if no request to the host may be sent now. Otherwise a permit to report the outcome
+	 * with, to succeeded(), failed() or abandoned().
+	 */
+	synchronized Object allowRequest(String host) {
+		Host h = mHosts.get(host);
+		if(h == null || h.state == STATE_CLOSED)
+			return NOT_PROBING;
+
+		if(h.state == STATE_OPEN) {
+			if(SystemClock.uptimeMillis() - h.openedAt < mOpenMillis)
+				return null;
+			h.state = STATE_HALF_OPEN;
+		}
+
+		// half-open, one probe at a time. The probe's permit is its host entry, a reset() replaces that.
+		if(h.probing)
+			return null;
+		h.probing = true;
+		return h;
+	}
+
+	/**
+	 * @return Milliseconds until the host's circuit lets a probe through, 0 if it does already.
+	 */
+	synchronized long getRemainingOpenMillis(String host) {
+		Host h = mHosts.get(host);
+		if(h == null || h.state != STATE_OPEN)
+			return 0;
+		return Math.max(0, mOpenMillis - (SystemClock.uptimeMillis() - h.openedAt));
+	}
+
+	synchronized void succeeded(String host, Object permit) {
+		Host h = mHosts.get(host);
+		if(h != null && h == permit) {
+			// the probe got through, the host is back
+			mHosts.remove(host);
+		}
+	}
+
+	synchronized void failed(String host, Object permit) {
+		final long now = SystemClock.uptimeMillis();
+		Host h = mHosts.get(host);
+		if(h == null) {
+			h = new Host();
+			mHosts.put(host, h);
+		}
+
+		if(h == permit) {
+			// the probe failed
+			h.probing = false;
+			h.state = STATE_OPEN;
+			h.openedAt = now;
+			return;
+		}
+		if(h.state != STATE_CLOSED)
+			return; // sent before the circuit opened, the probe decides
+
+		h.failures.addLast(now);
+		expire(h, now);
+		if(h.state == STATE_CLOSED && h.failures.size() >= mFailureThreshold) {
+			h.state = STATE_OPEN;
+			h.openedAt = now;
+			h.failures.clear();
+		}
+	}
+
+	/**
+	 * The request ended without telling anything about the host, e.g. it was cancelled.
+	 */
+	synchronized void abandoned(String host, Object permit) {
+		Host h = mHosts.get(host);
+		if(h != null && h == permit)
+			h.probing = false;
+	}
+
+	private void expire(Host h, long now) {
+		while(!h.failures.isEmpty() && now - h.failures.getFirst() > mWindowMillis)
+			h.failures.removeFirst();
+	}
+}
@@ -30,56 +30,212 @@
 
 package com.shoutrlabs.restful;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.security.KeyStore;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 
 public class RESTfulClient  {
 
 	private final String TAG="RESTfulClient";
-	private DefaultHttpClient mHttpClient; //only accessed by commThread
-	private CommThread mCommThread;
+	private DefaultHttpClient mHttpClient; // shared by all worker threads, backed by the thread-safe RESTfulConnectionPool
+	private final Lane[] mLanes = new Lane[2]; // indexed by LANE_* constants
+
+	// tasks are dispatched to lanes by mode, so that bulk transfers never delay small API calls
+	private static final int LANE_INTERACTIVE = 0;
+	private static final int LANE_BULK = 1;
+
+	/**
+	 * Maximum number of worker threads serving getJSON, postJSON, getString and getRawData calls
+	 * when using a constructor that does not take worker counts.
+	 */
+	public static final int DEFAULT_INTERACTIVE_WORKER_COUNT = 1;
+
+	/**
+	 * Maximum number of worker threads serving getFile, postMultipart and getSize calls
+	 * when using a constructor that does not take worker counts.
+	 */
+	public static final int DEFAULT_BULK_WORKER_COUNT = 1;
+
+	/**
+	 * Priority for work the user is waiting for, e.g. a tapped item.
+	 */
+	public static final int PRIORITY_HIGH = 1;
+
+	/**
+	 * Priority of all calls that do not take a priority.
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+
+	/**
+	 * Priority for background work like prefetching.
+	 */
+	public static final int PRIORITY_LOW = -1;
+
+	/**
+	 * Default time a queued task has to wait to gain one priority level.
+	 */
+	public static final long DEFAULT_PRIORITY_AGING_MILLIS = 2000;
+
+	private volatile long mPriorityAgingNanos = DEFAULT_PRIORITY_AGING_MILLIS * 1000000L;
+
+	/**
+	 * Default time an idle worker thread waits for a task before it ends.
+	 */
+	public static final long DEFAULT_WORKER_IDLE_TIMEOUT_MILLIS = 30000;
+
+	private volatile long mWorkerIdleTimeoutMillis = DEFAULT_WORKER_IDLE_TIMEOUT_MILLIS;
+
+	/**
+	 * Default time to wait for a connection to be established.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Default time to wait for the next data on a socket.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+	private volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private volatile int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+	private final AtomicLong mTaskSequence = new AtomicLong();
+	private volatile RESTfulResponseCache mResponseCache;
+
+	/**
+	 * Default minimum size of a segment of a segmented getFile download.
+	 */
+	public static final long DEFAULT_MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private volatile int mSegmentCount = 1;
+	private volatile long mMinSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+	private ExecutorService mHelperExecutor; // runs extra threads of segmented downloads, getSize and batches, created on first use. Each of them is capped, so per worker there are at most as many helpers as the largest cap.
+
+	/**
+	 * Default maximum number of concurrent HEAD requests of a getSize call.
+	 */
+	public static final int DEFAULT_SIZE_FAN_OUT = 4;
+
+	/**
+	 * Default maximum number of concurrent requests of a batch.
+	 */
+	public static final int DEFAULT_BATCH_FAN_OUT = 4;
+
+	/**
+	 * Default limit of the maxConcurrent argument of batch calls.
+	 */
+	public static final int DEFAULT_MAX_BATCH_FAN_OUT = 8;
+
+	/**
+	 * Default time sizes found by getSize are used without asking the server again.
+	 */
+	public static final long DEFAULT_SIZE_CACHE_MILLIS = 30000;
+
+	private volatile long mRequestCompressionThreshold = -1;
+	private final AtomicLong mRequestBytesUncompressed = new AtomicLong();
+	private final AtomicLong mRequestBytesSent = new AtomicLong();
+
+	/**
+	 * Default minimum time between two progress callbacks of a transfer.
+	 */
+	public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 100;
+
+	private volatile long mProgressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+	private volatile long mProgressMinBytes = 0;
+
+	/**
+	 * Default size above which getRawDataBuffer results are memory-mapped from a temp file.
+	 */
+	public static final long DEFAULT_BUFFER_SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+	private volatile long mBufferSpillThreshold = DEFAULT_BUFFER_SPILL_THRESHOLD;
+	private volatile File mBufferSpillDir;
+
+	private volatile RESTfulCircuitBreaker mCircuitBreaker;
+	private final RESTfulMetrics mMetrics = new RESTfulMetrics();
+	private volatile RESTfulInterface.OnRequestMetricsListener mMetricsListener;
+	private volatile RESTfulRetryPolicy mRetryPolicy = RESTfulRetryPolicy.NONE;
+	private ScheduledExecutorService mRetryScheduler; // waits out retry delays and deadlines, created on first use
+	private final HashSet<Task> mRetrying = new HashSet<Task>(); // tasks waiting for their next attempt
+	private boolean mQuit;
+
+	private volatile int mSizeFanOut = DEFAULT_SIZE_FAN_OUT;
+	private volatile int mMaxBatchFanOut = DEFAULT_MAX_BATCH_FAN_OUT;
+	private final SizeCache mSizeCache = new SizeCache(DEFAULT_SIZE_CACHE_MILLIS);
+	private final HashMap<String, Task> mInFlight = new HashMap<String, Task>(); // coalescable tasks queued or running, by coalescing key
 
 	private boolean mDoLog;
 
@@ -97,34 +253,80 @@ public class RESTfulClient  {
 				new UsernamePasswordCredentials(user, pass));
 	}
 
-	// this constructor is called by any other constructor
 	public RESTfulClient (Context ctx, int bksResource, String pass, boolean doLog) {
+		this(ctx, bksResource, pass, doLog, DEFAULT_INTERACTIVE_WORKER_COUNT);
+	}
+
+	/**
+	 * @param workerCount Maximum number of worker threads serving interactive calls. Bulk transfers are served by
+	 *                    DEFAULT_BULK_WORKER_COUNT workers of their own.
+	 */
+	public RESTfulClient (Context ctx, int bksResource, String pass, boolean doLog, int workerCount) {
+		this(ctx, bksResource, pass, doLog, workerCount, DEFAULT_BULK_WORKER_COUNT);
+	}
+
+	/**
+	 * This constructor is called by any other constructor.
+	 * @param ctx Context to load the BKS keystore from. May be null.
+	 * @param bksResource Raw resource id of the BKS keystore or 0.
+	 * @param pass Password of the BKS keystore. May be null.
+	 * @param doLog Whether to log.
+	 * @param interactiveWorkerCount Maximum number of worker threads serving getJSON, postJSON, getString and getRawData.
+	 * @param bulkWorkerCount Maximum number of worker threads serving getFile, postMultipart and getSize.
+	 * With more than one worker in a lane, or when calls go to different lanes, tasks may complete in a
+	 * different order than they were queued.
+	 */
+	public RESTfulClient (Context ctx, int bksResource, String pass, boolean doLog, int interactiveWorkerCount, int bulkWorkerCount) {
 
 		mDoLog = doLog;
 
+		if(interactiveWorkerCount < 1 || bulkWorkerCount < 1)
+			throw new IllegalArgumentException("worker counts must be at least 1");
+
 		HttpParams httpParams = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(httpParams, 10000);
-		HttpConnectionParams.setSoTimeout(httpParams, 10000);
+		HttpConnectionParams.setConnectionTimeout(httpParams, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+		HttpConnectionParams.setSoTimeout(httpParams, DEFAULT_READ_TIMEOUT_MILLIS);
 		HttpConnectionParams.setTcpNoDelay(httpParams,true);
 
+		// connections come from a process-wide pool shared with all other clients of the same trust configuration
+		final ClientConnectionManager cm;
 		if(ctx == null || bksResource == 0 || pass == null) {
-			mHttpClient = new DefaultHttpClient(httpParams);
+			cm = RESTfulConnectionPool.getConnectionManager(RESTfulConnectionPool.DEFAULT_TRUST, null);
 		}
 		else {
-			final SchemeRegistry schemeRegistry = new SchemeRegistry();
-			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-			schemeRegistry.register(new Scheme("https", createAdditionalCertsSSLSocketFactory(ctx, bksResource, pass), 443));
-
-			// create connection manager using scheme, we use ThreadSafeClientConnManager
-			final ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams,schemeRegistry);
-			mHttpClient = new DefaultHttpClient(cm, httpParams);
+			final Resources resources = ctx.getResources();
+			final int res = bksResource;
+			final String password = pass;
+			final String trustKey = RESTfulConnectionPool.keyStoreTrustKey(bksResource, pass);
+			// the keystore is loaded once per process and off this thread, connections wait for it if needed
+			cm = RESTfulConnectionPool.getConnectionManager(trustKey, new RESTfulConnectionPool.HttpsSocketFactoryProvider() {
+				@Override
+				public SocketFactory create() {
+					return new DeferredSocketFactory("bks-" + res, new Callable<LayeredSocketFactory>() {
+						@Override
+						public LayeredSocketFactory call() throws Exception {
+							return createAdditionalCertsSSLSocketFactory(resources, res, password);
+						}
+					}, trustKey);
+				}
+			});
 		}
 
+		// each client has its own http client though, so cookies and credentials stay per client
+		mHttpClient = new DefaultHttpClient(cm, httpParams) {
+			@Override
+			protected HttpRequestExecutor createRequestExecutor() {
+				return new MetricsRequestExecutor();
+			}
+		};
+		mHttpClient.setKeepAliveStrategy(RESTfulConnectionPool.KEEP_ALIVE_STRATEGY);
+
 		// don't forget to create http context
 		resetSession();
 
-		mCommThread = new CommThread();
-		mCommThread.start();
+		// workers are started with the first tasks
+		mLanes[LANE_INTERACTIVE] = new Lane("interactive", interactiveWorkerCount);
+		mLanes[LANE_BULK] = new Lane("bulk", bulkWorkerCount);
 	}
 
 	/**
@@ -174,223 +376,908 @@ public class RESTfulClient  {
 
 
 	/**
-	 * get unformatted string from url in a thread, callback will be executed on the main thread.
-	 * @param h
-	 * @param url
-	 * @param callback Callback to invoke on completion. May be null.
+	 * Sets how long a queued task has to wait to gain one priority level. This keeps a steady stream of
+	 * high-priority calls from starving low-priority ones. Applies to tasks queued after this call.
+	 * @param millis
 	 */
-	public synchronized void getString(Handler h, String url, RESTfulInterface.OnGetStringCompleteListener callback) {
-
-		url = sanitizeUrl(url);
-
-		if(mDoLog) Log.d(TAG, "queueing GETSTRING " + url);
-
-		CommThread.Task gs = mCommThread.new Task(CommThread.Task.MODE_GETSTRING);
-		gs.in_url= url;
-		gs.callbackHandler = h;
-		gs.getStringCallback = callback;
-		mCommThread.addTask(gs);
+	public void setPriorityAging(long millis) {
+		if(millis <= 0)
+			throw new IllegalArgumentException("aging interval must be positive");
+		mPriorityAgingNanos = millis * 1000000L;
 	}
 
 
 	/**
-	 * get raw binary data from url in a thread, callback will be executed on the main thread.
-	 * @param h
-	 * @param url
-	 * @param callback Callback to invoke on completion. May be null.
+	 * Enables segmented getFile downloads: files from servers that support byte ranges are fetched as
+	 * several ranges concurrently, which makes better use of high-latency links. Segmented downloads
+	 * are not resumed after errors.
+	 * @param segmentCount Maximum number of concurrent segments per file, 1 disables segmenting.
+	 * @param minSegmentSize Minimum size of a segment in bytes, smaller files get fewer segments.
 	 */
-	public synchronized void getRawData(Handler h, String url, RESTfulInterface.OnGetRawDataCompleteListener callback) {
+	public void setSegmentedDownloads(int segmentCount, long minSegmentSize) {
+		if(segmentCount < 1 || minSegmentSize < 1)
+			throw new IllegalArgumentException("invalid segment configuration");
+		mSegmentCount = segmentCount;
+		mMinSegmentSize = minSegmentSize;
+	}
 
-		url = sanitizeUrl(url);
+	/**
+	 * Sets how getSize queries its urls.
+	 * @param fanOut Maximum number of concurrent HEAD requests per getSize call.
+	 * @param cacheMillis Time a size is used without asking the server again. After that, it is revalidated
+	 *                    with its ETag. 0 disables the size cache.
+	 */
+	public void setSizeOptions(int fanOut, long cacheMillis) {
+		if(fanOut < 1 || cacheMillis < 0)
+			throw new IllegalArgumentException("invalid size options");
+		mSizeFanOut = fanOut;
+		mSizeCache.setTimeToLive(cacheMillis);
+		if(cacheMillis == 0)
+			mSizeCache.clear();
+	}
 
-		if(mDoLog) Log.d(TAG, "queueing GETRAWDATA " + url);
+	/**
+	 * Sets how batches run their requests.
+	 * @param maxFanOut Maximum number of concurrent requests per batch call, larger maxConcurrent arguments
+	 *                  of batch calls are capped to this.
+	 */
+	public void setBatchOptions(int maxFanOut) {
+		if(maxFanOut < 1)
+			throw new IllegalArgumentException("invalid batch options");
+		mMaxBatchFanOut = maxFanOut;
+	}
 
-		CommThread.Task grd = mCommThread.new Task(CommThread.Task.MODE_GETRAWDATA);
-		grd.in_url= url;
-		grd.callbackHandler = h;
-		grd.getRawDataCallback = callback;
-		mCommThread.addTask(grd);
+	private synchronized ExecutorService getHelperExecutor() {
+		if(mHelperExecutor == null) {
+			mHelperExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicLong mCount = new AtomicLong();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RESTfulHelperThread-" + mCount.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return mHelperExecutor;
 	}
 
+	private synchronized ScheduledExecutorService getRetryScheduler() {
+		if(mRetryScheduler == null) {
+			mRetryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RESTfulRetryThread");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return mRetryScheduler;
+	}
 
+	/**
+	 * Stops the retry scheduler and the helper threads once quit() is done with all tasks, so that a
+	 * client that quit keeps no threads. They are created again should the client be used after all.
+	 */
+	private synchronized void shutdownExecutorsIfDrained() {
+		if(!mQuit || !mRetrying.isEmpty())
+			return;
+		for(Lane l : mLanes)
+			if(l.liveWorkers.get() > 0)
+				return;
+
+		if(mDoLog) Log.d(TAG, "all tasks handled, stopping helper threads");
+		// what is left are timers of tasks that are done
+		if(mRetryScheduler != null) {
+			mRetryScheduler.shutdownNow();
+			mRetryScheduler = null;
+		}
+		if(mHelperExecutor != null) {
+			mHelperExecutor.shutdown();
+			mHelperExecutor = null;
+		}
+	}
 
 	/**
-	 * save data from url to file in a thread, callback will be executed on the main thread.
-	 * @param h
-	 * @param url
-	*/
-	public synchronized void getFile(Handler h, String url, String filename,
-									 RESTfulInterface.OnGetFileProgressListener progressCallback,
-									 RESTfulInterface.OnGetFileCompleteListener completeCallback) {
+	 * Queues a failed task again after the given delay. No worker waits for it in the meantime.
+	 * @return false if the client is quitting and the task should complete now.
+	 */
+	private synchronized boolean scheduleAttempt(final Task task, long delayMillis) {
+		if(mQuit)
+			return false;
 
-		url = sanitizeUrl(url);
+		mRetrying.add(task);
+		getRetryScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (RESTfulClient.this) {
+					if(!mRetrying.remove(task)) // cancelled meanwhile
+						return;
+					if(mQuit) {
+						completeTask(task);
+						shutdownExecutorsIfDrained();
+					}
+					else {
+						task.claimed.set(false);
+						mLanes[task.lane()].add(task); // keeps its place, it has waited already
+					}
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+		return true;
+	}
 
-		if(mDoLog) Log.d(TAG, "queueing GETFILE " + url);
 
-		CommThread.Task gf = mCommThread.new Task(CommThread.Task.MODE_GETFILE);
-		gf.in_url= url;
-		gf.out_filename = filename;
-		gf.callbackHandler = h;
-		gf.getFileProgressCallback = progressCallback;
-		gf.getFileCompleteCallback = completeCallback;
-		mCommThread.addTask(gf);
+	/**
+	 * Sets how long an idle worker thread waits for a task before it ends. Workers are started again
+	 * as tasks come in, so a client that is not used costs no threads.
+	 * @param millis The idle timeout, DEFAULT_WORKER_IDLE_TIMEOUT_MILLIS by default. 0 keeps workers until quit().
+	 */
+	public void setWorkerIdleTimeout(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("idle timeout must not be negative");
+		mWorkerIdleTimeoutMillis = millis;
 	}
 
+	/**
+	 * Sets the timeouts of calls that do not set their own via RESTfulRequestOptions. Meant to be
+	 * called before issuing calls.
+	 * @param connectMillis Time to wait for a connection to be established, DEFAULT_CONNECT_TIMEOUT_MILLIS by default.
+	 * @param readMillis Time to wait for the next data on a socket, DEFAULT_READ_TIMEOUT_MILLIS by default.
+	 */
+	public synchronized void setTimeouts(int connectMillis, int readMillis) {
+		if(connectMillis <= 0 || readMillis <= 0)
+			throw new IllegalArgumentException("timeouts must be positive");
+		mConnectTimeoutMillis = connectMillis;
+		mReadTimeoutMillis = readMillis;
+		// for the few requests not made through a task, e.g. segment probes
+		HttpConnectionParams.setConnectionTimeout(mHttpClient.getParams(), connectMillis);
+		HttpConnectionParams.setSoTimeout(mHttpClient.getParams(), readMillis);
+	}
 
 	/**
-	 * Get size of remote file(s) via HEAD request.
-	 * @param urls
-	 * @return Size of remote file or -1 on error.
+	 * Sets how often getFile and postMultipart report progress. Updates in between are coalesced,
+	 * the next callback reports the latest totals. There is never more than one progress callback
+	 * of a transfer waiting on the handler.
+	 * @param minIntervalMillis Minimum time between two progress callbacks.
+	 * @param minBytes Report earlier if this many bytes were transferred since the last callback. 0 disables this.
 	 */
-	public synchronized void getSize(Handler h, ArrayList<String> urls, RESTfulInterface.OnGetSizeCompleteListener completeCallback) {
+	public void setProgressThrottle(long minIntervalMillis, long minBytes) {
+		if(minIntervalMillis < 0)
+			throw new IllegalArgumentException("interval must not be negative");
+		mProgressIntervalMillis = minIntervalMillis;
+		mProgressMinBytes = minBytes;
+	}
 
-		if(mDoLog) Log.d(TAG, "queueing GETSIZE");
+	/**
+	 * Enables gzip compression of postJSON bodies. The server has to accept Content-Encoding: gzip.
+	 * @param thresholdBytes Bodies larger than this are compressed, -1 disables compression (the default).
+	 */
+	public void setRequestCompression(long thresholdBytes) {
+		mRequestCompressionThreshold = thresholdBytes;
+	}
 
-		CommThread.Task gs = mCommThread.new Task(CommThread.Task.MODE_GETSIZE);
-		gs.in_urllist= urls;
-		gs.callbackHandler = h;
-		gs.getSizeCompleteCallback = completeCallback;
-		mCommThread.addTask(gs);
+	/**
+	 * @return Summed size of all postJSON bodies before compression.
+	 */
+	public long getRequestBytesUncompressed() {
+		return mRequestBytesUncompressed.get();
+	}
 
+	/**
+	 * @return Summed size of all postJSON bodies as sent, i.e. after compression.
+	 */
+	public long getRequestBytesSent() {
+		return mRequestBytesSent.get();
 	}
 
 
+	/**
+	 * Sets the cache for responses of getJSON, getString, getRawData and getRawDataBuffer. The cache
+	 * follows the servers' Cache-Control, Expires, ETag and Last-Modified headers. Responses are only
+	 * served to requests with the same cookies and credentials as the one they were fetched with.
+	 * getRawDataBuffer bodies above the spill threshold are not cached.
+	 * @param cache The cache to use, not used by any other client. Null disables caching.
+	 * @throws IllegalArgumentException if the cache is used by another client.
+	 */
+	public synchronized void setResponseCache(RESTfulResponseCache cache) {
+		if(cache != null)
+			cache.attach(this, mDoLog);
+		if(mResponseCache != null && mResponseCache != cache)
+			mResponseCache.detach(this);
+		mResponseCache = cache;
+	}
 
 
 	/**
-	 * get JSON from url in a thread, callback will be executed on the main thread.
-	 * @param h
-	 * @param url
-	 * @param callback Callback to invoke on completion. May be null.
+	 * Sets the retry policy of all requests not bringing their own, see RESTfulRequestOptions.
+	 * @param policy The policy, RESTfulRetryPolicy.NONE (the default) disables retries.
 	 */
-	public synchronized void getJSON(Handler h, String url, RESTfulInterface.OnGetJSONCompleteListener callback) {
+	public void setRetryPolicy(RESTfulRetryPolicy policy) {
+		if(policy == null)
+			throw new IllegalArgumentException("policy must not be null, use RESTfulRetryPolicy.NONE");
+		mRetryPolicy = policy;
+	}
 
-		url = sanitizeUrl(url);
 
-		if(mDoLog) Log.d(TAG, "queueing GETJSON " + url);
+	/**
+	 * Sets the circuit breaker guarding the hosts this client talks to. Requests to hosts with an open
+	 * circuit complete with null at once. Their complete callbacks get a RESTfulCircuitOpenException
+	 * if they implement RESTfulInterface.OnErrorListener, too.
+	 * @param breaker The breaker, may be shared with other clients. Null (the default) disables it.
+	 */
+	public void setCircuitBreaker(RESTfulCircuitBreaker breaker) {
+		mCircuitBreaker = breaker;
+	}
 
-		CommThread.Task gj = mCommThread.new Task(CommThread.Task.MODE_GETJSON);
-		gj.in_url= url;
-		gj.callbackHandler = h;
-		gj.getJSONCallback = callback;
-		mCommThread.addTask(gj);
+	public RESTfulCircuitBreaker getCircuitBreaker() {
+		return mCircuitBreaker;
 	}
 
 
 	/**
-	 * post JSON to url in a thread, callback will be executed on the main thread.
-	 * @param h
-	 * @param url
-	 * @param data
-	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Counters and latency histograms of all calls of this client so far, see RESTfulMetrics.snapshot().
 	 */
-	public synchronized void postJSON(Handler h, String url, JSONObject data, RESTfulInterface.OnPostJSONCompleteListener callback) {
+	public RESTfulMetrics getMetrics() {
+		return mMetrics;
+	}
 
-		url = sanitizeUrl(url);
+	/**
+	 * Sets a listener getting timing and traffic of every finished call. It is called on the worker
+	 * thread right after the complete callback was posted, so it must be quick.
+	 * @param listener The listener, null to remove it.
+	 */
+	public void setMetricsListener(RESTfulInterface.OnRequestMetricsListener listener) {
+		mMetricsListener = listener;
+	}
 
-		if(mDoLog) Log.d(TAG, "queueing POSTJSON " + url + " " + data.toString());
 
-		CommThread.Task pj = mCommThread.new Task(CommThread.Task.MODE_POSTJSON);
-		pj.in_url= url;
-		pj.in_json = data;
-		pj.callbackHandler = h;
-		pj.postJSONCallback = callback;
-		mCommThread.addTask(pj);
+	/**
+	 * Sets where getRawDataBuffer puts large bodies.
+	 * @param thresholdBytes Bodies larger than this are written to a temp file and returned memory-mapped.
+	 * @param dir Directory for the temp files, e.g. Context.getCacheDir(). Null for the default temp directory.
+	 */
+	public void setBufferSpill(long thresholdBytes, File dir) {
+		if(thresholdBytes < 0)
+			throw new IllegalArgumentException("threshold must not be negative");
+		mBufferSpillThreshold = thresholdBytes;
+		mBufferSpillDir = dir;
 	}
 
 
-
 	/**
-	 * Post the given input streams as multipart form data to the given url.
+	 * get unformatted string from url in a thread, callback will be executed on the main thread.
 	 * @param h
 	 * @param url
-	 * @param inStreams
-	 * @param mimeTypes MIME type of the given data.
-	 * @param fileNames
-	 * @param progressCallback Callback to invoke on progress. May be null.
-	 * @param completeCallback Callback to invoke on completion. May be null.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
 	 */
-	public synchronized void postMultipart(
-			Handler h,
-			String url,
-			InputStream[] inStreams,
-			String[] mimeTypes,
-			String[] fileNames,
-			RESTfulInterface.OnPostMultipartProgressListener progressCallback,
-			RESTfulInterface.OnPostMultipartCompleteListener completeCallback) {
-
-		url = sanitizeUrl(url);
-
-		if(mDoLog) Log.d(TAG, "queueing POSTMULTIPART " + url + " " + inStreams.toString());
-
-		CommThread.Task pm = mCommThread.new Task(CommThread.Task.MODE_POSTMULTIPART);
-		pm.in_url= url;
-		pm.in_arr_is = inStreams;
-		pm.in_arr_mimetypes = mimeTypes;
-		pm.in_arr_filenames = fileNames;
-		pm.callbackHandler = h;
-		pm.postMultipartProgressCallback = progressCallback;
-		pm.postMultipartCompleteCallback = completeCallback;
-		mCommThread.addTask(pm);
+	public RESTfulRequestHandle getString(Handler h, String url, RESTfulInterface.OnGetStringCompleteListener callback) {
+		return getString(h, url, PRIORITY_NORMAL, callback);
 	}
 
-
 	/**
-	 * Quit after all scheduled operations have been handled
+	 * get unformatted string from url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
 	 */
-	public synchronized void quit() {
-
-		if(mDoLog) Log.d(TAG, "queueing QUIT");
-
-		CommThread.Task q = mCommThread.new Task(CommThread.Task.QUIT);
-		mCommThread.addTask(q);
+	public RESTfulRequestHandle getString(Handler h, String url, int priority, RESTfulInterface.OnGetStringCompleteListener callback) {
+		return getString(h, url, new RESTfulRequestOptions().setPriority(priority), callback);
 	}
 
-	public synchronized void cancelAll() {
+	/**
+	 * get unformatted string from url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getString(Handler h, String url, RESTfulRequestOptions options, RESTfulInterface.OnGetStringCompleteListener callback) {
 
-		if(mDoLog) Log.d(TAG, "Cancelling all operations");
+		url = sanitizeUrl(url);
 
-		// empty the task queue
-		mCommThread.mTaskQueue.clear();
-		// disconnect callbacks of current task
-		try {
-			mCommThread.mCurrentTask.postJSONCallback = null;
-			mCommThread.mCurrentTask.getJSONCallback = null;
-			mCommThread.mCurrentTask.getStringCallback = null;
-			mCommThread.mCurrentTask.getRawDataCallback = null;
-			mCommThread.mCurrentTask.postMultipartProgressCallback = null;
-			mCommThread.mCurrentTask.postMultipartCompleteCallback = null;
-			mCommThread.mCurrentTask.getFileProgressCallback = null;
-			mCommThread.mCurrentTask.getFileCompleteCallback = null;
-			mCommThread.mCurrentTask.getSizeCompleteCallback = null;
-            // remove maybe-posted runnables we posted
-            mCommThread.mCurrentTask.callbackHandler.removeCallbacksAndMessages(RESTfulClient.this);
-		}
-		catch(NullPointerException e) {
-		}
-		// and interrupt currently running op
-		mCommThread.interrupt();
+		if(mDoLog) Log.d(TAG, "queueing GETSTRING " + url);
 
+		Task gs = new Task(Task.MODE_GETSTRING);
+		gs.applyOptions(options);
+		gs.in_url= url;
+		gs.callbackHandler = h;
+		gs.getStringCallback = callback;
+		addTask(gs);
+		return gs;
 	}
 
+
 	/**
-	 * This is more a last-minute safety measure, as httpClient would otherwise hick up.
+	 * get raw binary data from url in a thread, callback will be executed on the main thread.
+	 * @param h
 	 * @param url
-	 * @return
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
 	 */
-	private String sanitizeUrl(String url) {
-		// eat up senseless blanks, would cause httpClient to hickup
-		url = url.replaceAll(" ", "");
-		// also, remove double shlashes except first pair
-		return url.replaceAll("(?<!:)//", "/");
+	public RESTfulRequestHandle getRawData(Handler h, String url, RESTfulInterface.OnGetRawDataCompleteListener callback) {
+		return getRawData(h, url, PRIORITY_NORMAL, callback);
 	}
 
 	/**
-	 * All characters except letters ('a'..'z', 'A'..'Z') and numbers ('0'..'9') and characters '.', '-', '*', '_' are converted into their hexadecimal value prepended by '%'. For example: '#' -> %23. In addition, spaces are substituted by '%20'.
+	 * get raw binary data from url in a thread, callback will be executed on the main thread.
+	 * @param h
 	 * @param url
-	 * @return
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
 	 */
-	public static String urlEncode(String url) {
+	public RESTfulRequestHandle getRawData(Handler h, String url, int priority, RESTfulInterface.OnGetRawDataCompleteListener callback) {
+		return getRawData(h, url, new RESTfulRequestOptions().setPriority(priority), callback);
+	}
+
+	/**
+	 * get raw binary data from url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getRawData(Handler h, String url, RESTfulRequestOptions options, RESTfulInterface.OnGetRawDataCompleteListener callback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing GETRAWDATA " + url);
+
+		Task grd = new Task(Task.MODE_GETRAWDATA);
+		grd.applyOptions(options);
+		grd.in_url= url;
+		grd.callbackHandler = h;
+		grd.getRawDataCallback = callback;
+		addTask(grd);
+		return grd;
+	}
+
+
+	/**
+	 * get raw binary data from url in a thread, callback will be executed on the main thread.
+	 * The result has exactly the size of the body. Bodies larger than the spill threshold, see
+	 * setBufferSpill(), are returned as a read-only memory-mapped buffer, bodies from the response
+	 * cache as a read-only heap buffer.
+	 * @param h
+	 * @param url
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getRawDataBuffer(Handler h, String url, RESTfulInterface.OnGetRawDataBufferCompleteListener callback) {
+		return getRawDataBuffer(h, url, PRIORITY_NORMAL, callback);
+	}
+
+	/**
+	 * get raw binary data from url in a thread, callback will be executed on the main thread.
+	 * The result has exactly the size of the body. Bodies larger than the spill threshold, see
+	 * setBufferSpill(), are returned as a read-only memory-mapped buffer, bodies from the response
+	 * cache as a read-only heap buffer.
+	 * @param h
+	 * @param url
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getRawDataBuffer(Handler h, String url, int priority, RESTfulInterface.OnGetRawDataBufferCompleteListener callback) {
+		return getRawDataBuffer(h, url, new RESTfulRequestOptions().setPriority(priority), callback);
+	}
+
+	/**
+	 * get raw binary data from url in a thread, callback will be executed on the main thread.
+	 * The result has exactly the size of the body. Bodies larger than the spill threshold, see
+	 * setBufferSpill(), are returned as a read-only memory-mapped buffer, bodies from the response
+	 * cache as a read-only heap buffer.
+	 * @param h
+	 * @param url
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getRawDataBuffer(Handler h, String url, RESTfulRequestOptions options, RESTfulInterface.OnGetRawDataBufferCompleteListener callback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing GETBUFFER " + url);
+
+		Task gb = new Task(Task.MODE_GETBUFFER);
+		gb.applyOptions(options);
+		gb.in_url= url;
+		gb.callbackHandler = h;
+		gb.getRawDataBufferCallback = callback;
+		addTask(gb);
+		return gb;
+	}
+
+
+
+	/**
+	 * save data from url to file in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	*/
+	public RESTfulRequestHandle getFile(Handler h, String url, String filename,
+						RESTfulInterface.OnGetFileProgressListener progressCallback,
+						RESTfulInterface.OnGetFileCompleteListener completeCallback) {
+		return getFile(h, url, filename, PRIORITY_NORMAL, progressCallback, completeCallback);
+	}
+
+	/**
+	 * save data from url to file in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getFile(Handler h, String url, String filename, int priority,
+									 RESTfulInterface.OnGetFileProgressListener progressCallback,
+									 RESTfulInterface.OnGetFileCompleteListener completeCallback) {
+		return getFile(h, url, filename, new RESTfulRequestOptions().setPriority(priority), progressCallback, completeCallback);
+	}
+
+	/**
+	 * save data from url to file in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getFile(Handler h, String url, String filename, RESTfulRequestOptions options,
+									 RESTfulInterface.OnGetFileProgressListener progressCallback,
+									 RESTfulInterface.OnGetFileCompleteListener completeCallback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing GETFILE " + url);
+
+		Task gf = new Task(Task.MODE_GETFILE);
+		gf.applyOptions(options);
+		gf.in_url= url;
+		gf.out_filename = filename;
+		gf.callbackHandler = h;
+		gf.getFileProgressCallback = progressCallback;
+		gf.getFileCompleteCallback = completeCallback;
+		addTask(gf);
+		return gf;
+	}
+
+
+	/**
+	 * Get size of remote file(s) via HEAD request.
+	 * @param urls
+	 * @param completeCallback Gets the summed size of all urls or -1 on error.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getSize(Handler h, ArrayList<String> urls, RESTfulInterface.OnGetSizeCompleteListener completeCallback) {
+		return getSize(h, urls, new RESTfulRequestOptions(), completeCallback);
+	}
+
+	/**
+	 * Get size of remote file(s) via HEAD request.
+	 * @param urls
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param completeCallback Gets the summed size of all urls or -1 on error.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getSize(Handler h, ArrayList<String> urls, RESTfulRequestOptions options, RESTfulInterface.OnGetSizeCompleteListener completeCallback) {
+
+		if(mDoLog) Log.d(TAG, "queueing GETSIZE");
+
+		Task gs = new Task(Task.MODE_GETSIZE);
+		gs.applyOptions(options);
+		gs.in_urllist= urls;
+		gs.callbackHandler = h;
+		gs.getSizeCompleteCallback = completeCallback;
+		addTask(gs);
+		return gs;
+
+	}
+
+	/**
+	 * Get size of remote file(s) via HEAD request, reporting the size of each url as well.
+	 * @param urls
+	 * @param completeCallback Gets the summed size and the size of each url, or -1 and null on error.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getSize(Handler h, ArrayList<String> urls, RESTfulInterface.OnGetSizesCompleteListener completeCallback) {
+		return getSize(h, urls, new RESTfulRequestOptions(), completeCallback);
+	}
+
+	/**
+	 * Get size of remote file(s) via HEAD request, reporting the size of each url as well.
+	 * @param urls
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param completeCallback Gets the summed size and the size of each url, or -1 and null on error.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getSize(Handler h, ArrayList<String> urls, RESTfulRequestOptions options, RESTfulInterface.OnGetSizesCompleteListener completeCallback) {
+
+		if(mDoLog) Log.d(TAG, "queueing GETSIZE");
+
+		Task gs = new Task(Task.MODE_GETSIZE);
+		gs.applyOptions(options);
+		gs.in_urllist= urls;
+		gs.callbackHandler = h;
+		gs.getSizesCompleteCallback = completeCallback;
+		addTask(gs);
+		return gs;
+
+	}
+
+
+	/**
+	 * Runs several requests as one unit, up to DEFAULT_BATCH_FAN_OUT at a time. Callbacks will be
+	 * executed on the main thread.
+	 * @param h
+	 * @param requests The requests, see RESTfulBatchRequest.
+	 * @param itemCallback Gets each result as soon as it is there. May be null.
+	 * @param completeCallback Gets all results in the order of requests. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle batch(Handler h, List<RESTfulBatchRequest> requests,
+					  RESTfulInterface.OnBatchItemCompleteListener itemCallback,
+					  RESTfulInterface.OnBatchCompleteListener completeCallback) {
+		return batch(h, requests, DEFAULT_BATCH_FAN_OUT, PRIORITY_NORMAL, itemCallback, completeCallback);
+	}
+
+	/**
+	 * Runs several requests as one unit. Callbacks will be executed on the main thread.
+	 * @param h
+	 * @param requests The requests, see RESTfulBatchRequest.
+	 * @param maxConcurrent Maximum number of requests of this batch running at the same time, capped by
+	 *                      setBatchOptions.
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @param itemCallback Gets each result as soon as it is there. May be null.
+	 * @param completeCallback Gets all results in the order of requests. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle batch(Handler h, List<RESTfulBatchRequest> requests, int maxConcurrent, int priority,
+								   RESTfulInterface.OnBatchItemCompleteListener itemCallback,
+								   RESTfulInterface.OnBatchCompleteListener completeCallback) {
+
+		if(maxConcurrent < 1)
+			throw new IllegalArgumentException("maxConcurrent must be at least 1");
+
+		if(mDoLog) Log.d(TAG, "queueing BATCH of " + requests.size());
+
+		Task b = new Task(Task.MODE_BATCH);
+		b.priority = priority;
+		b.in_batch = new ArrayList<RESTfulBatchRequest>(requests);
+		b.in_fan_out = maxConcurrent;
+		b.callbackHandler = h;
+		b.batchItemCallback = itemCallback;
+		b.batchCompleteCallback = completeCallback;
+		addTask(b);
+		return b;
+	}
+
+
+
+
+	/**
+	 * get JSON from url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getJSON(Handler h, String url, RESTfulInterface.OnGetJSONCompleteListener callback) {
+		return getJSON(h, url, PRIORITY_NORMAL, callback);
+	}
+
+	/**
+	 * get JSON from url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle getJSON(Handler h, String url, int priority, RESTfulInterface.OnGetJSONCompleteListener callback) {
+		return getJSON(h, url, new RESTfulRequestOptions().setPriority(priority), callback);
+	}
+
+	/**
+	 * get JSON from url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle getJSON(Handler h, String url, RESTfulRequestOptions options, RESTfulInterface.OnGetJSONCompleteListener callback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing GETJSON " + url);
+
+		Task gj = new Task(Task.MODE_GETJSON);
+		gj.applyOptions(options);
+		gj.in_url= url;
+		gj.callbackHandler = h;
+		gj.getJSONCallback = callback;
+		addTask(gj);
+		return gj;
+	}
+
+	/**
+	 * get JSON from url in a thread and decode it with the given decoder while reading, without holding
+	 * the whole body as a String. Callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param decoder Decodes the body, e.g. JSONStreamDecoder.ARRAY for top-level arrays or a decoder for
+	 *                the caller's model type.
+	 * @param callback Callback to invoke on completion, gets null on error. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public <T> RESTfulRequestHandle getJSON(Handler h, String url, RESTfulDecoder<T> decoder, RESTfulInterface.OnGetDecodedCompleteListener<T> callback) {
+		return getJSON(h, url, PRIORITY_NORMAL, decoder, callback);
+	}
+
+	/**
+	 * get JSON from url in a thread and decode it with the given decoder while reading, without holding
+	 * the whole body as a String. Callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param priority One of the PRIORITY_* constants, higher priorities are served first.
+	 * @param decoder Decodes the body, e.g. JSONStreamDecoder.ARRAY for top-level arrays or a decoder for
+	 *                the caller's model type.
+	 * @param callback Callback to invoke on completion, gets null on error. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public <T> RESTfulRequestHandle getJSON(Handler h, String url, int priority, RESTfulDecoder<T> decoder, RESTfulInterface.OnGetDecodedCompleteListener<T> callback) {
+		return getJSON(h, url, new RESTfulRequestOptions().setPriority(priority), decoder, callback);
+	}
+
+	/**
+	 * get JSON from url in a thread and decode it with the given decoder while reading, without holding
+	 * the whole body as a String. Callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param decoder Decodes the body, e.g. JSONStreamDecoder.ARRAY for top-level arrays or a decoder for
+	 *                the caller's model type.
+	 * @param callback Callback to invoke on completion, gets null on error. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized <T> RESTfulRequestHandle getJSON(Handler h, String url, RESTfulRequestOptions options, RESTfulDecoder<T> decoder, RESTfulInterface.OnGetDecodedCompleteListener<T> callback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing GETDECODED " + url);
+
+		Task gd = new Task(Task.MODE_GETDECODED);
+		gd.applyOptions(options);
+		gd.in_url= url;
+		gd.in_decoder = decoder;
+		gd.callbackHandler = h;
+		gd.getDecodedCallback = callback;
+		addTask(gd);
+		return gd;
+	}
+
+
+	/**
+	 * post JSON to url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param data
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle postJSON(Handler h, String url, JSONObject data, RESTfulInterface.OnPostJSONCompleteListener callback) {
+		return postJSON(h, url, data, new RESTfulRequestOptions(), callback);
+	}
+
+	/**
+	 * post JSON to url in a thread, callback will be executed on the main thread.
+	 * @param h
+	 * @param url
+	 * @param data
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param callback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle postJSON(Handler h, String url, JSONObject data, RESTfulRequestOptions options, RESTfulInterface.OnPostJSONCompleteListener callback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing POSTJSON " + url + " " + data.toString());
+
+		Task pj = new Task(Task.MODE_POSTJSON);
+		pj.applyOptions(options);
+		pj.in_url= url;
+		pj.in_json = data;
+		pj.callbackHandler = h;
+		pj.postJSONCallback = callback;
+		addTask(pj);
+		return pj;
+	}
+
+
+
+	/**
+	 * Post the given input streams as multipart form data to the given url.
+	 * @param h
+	 * @param url
+	 * @param inStreams
+	 * @param mimeTypes MIME type of the given data.
+	 * @param fileNames
+	 * @param progressCallback Callback to invoke on progress. May be null.
+	 * @param completeCallback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public RESTfulRequestHandle postMultipart(
+			Handler h,
+			String url,
+			InputStream[] inStreams,
+			String[] mimeTypes,
+			String[] fileNames,
+			RESTfulInterface.OnPostMultipartProgressListener progressCallback,
+			RESTfulInterface.OnPostMultipartCompleteListener completeCallback) {
+		return postMultipart(h, url, inStreams, mimeTypes, fileNames, new RESTfulRequestOptions(), progressCallback, completeCallback);
+	}
+
+	/**
+	 * Post the given input streams as multipart form data to the given url. The streams can only be
+	 * sent once, so multipart posts are never retried.
+	 * @param h
+	 * @param url
+	 * @param inStreams
+	 * @param mimeTypes MIME type of the given data.
+	 * @param fileNames
+	 * @param options Priority, retry policy and timeouts of this request, see RESTfulRequestOptions.
+	 * @param progressCallback Callback to invoke on progress. May be null.
+	 * @param completeCallback Callback to invoke on completion. May be null.
+	 * @return Handle to cancel this call, see RESTfulRequestHandle.
+	 */
+	public synchronized RESTfulRequestHandle postMultipart(
+			Handler h,
+			String url,
+			InputStream[] inStreams,
+			String[] mimeTypes,
+			String[] fileNames,
+			RESTfulRequestOptions options,
+			RESTfulInterface.OnPostMultipartProgressListener progressCallback,
+			RESTfulInterface.OnPostMultipartCompleteListener completeCallback) {
+
+		url = sanitizeUrl(url);
+
+		if(mDoLog) Log.d(TAG, "queueing POSTMULTIPART " + url + " " + inStreams.toString());
+
+		Task pm = new Task(Task.MODE_POSTMULTIPART);
+		pm.applyOptions(options);
+		pm.in_url= url;
+		pm.in_arr_is = inStreams;
+		pm.in_arr_mimetypes = mimeTypes;
+		pm.in_arr_filenames = fileNames;
+		pm.callbackHandler = h;
+		pm.postMultipartProgressCallback = progressCallback;
+		pm.postMultipartCompleteCallback = completeCallback;
+		addTask(pm);
+		return pm;
+	}
+
+
+	/**
+	 * Quit after all scheduled operations have been handled
+	 */
+	public synchronized void quit() {
+
+		if(mDoLog) Log.d(TAG, "queueing QUIT");
+
+		mQuit = true;
+
+		// workers stop taking tasks after the QUIT, which goes after all other tasks
+		for(Lane l : mLanes)
+			l.quit();
+
+		// there may be no worker left to end
+		shutdownExecutorsIfDrained();
+	}
+
+	public synchronized void cancelAll() {
+
+		if(mDoLog) Log.d(TAG, "Cancelling all operations");
+
+		// coalesced calls of queued tasks are dropped with them
+		mInFlight.clear();
+
+		// tasks waiting for a retry are dropped as well
+		for(Task t : mRetrying) {
+			t.disconnectCallbacks();
+			t.abandon();
+		}
+		mRetrying.clear();
+
+		for(Lane l : mLanes) {
+			// empty the task queue
+			for(Task t : l.queue)
+				if(t.mode != Task.QUIT) {
+					t.disconnectCallbacks();
+					t.abandon();
+				}
+			l.queue.clear();
+			if(mQuit)
+				l.quit();
+			for(CommThread t : l.workers) {
+				// disconnect callbacks of the task this worker is currently running
+				Task current = t.mCurrentTask;
+				if(current != null) {
+					current.disconnectCallbacks();
+					// and abort currently running op, an interrupt alone does not end a blocking read
+					current.abandoned = true;
+					current.abortRequests();
+					t.interruptTask(current);
+				}
+			}
+		}
+
+		shutdownExecutorsIfDrained();
+	}
+
+	/**
+	 * Cancels a single call, see RESTfulRequestHandle.cancel().
+	 */
+	private synchronized boolean cancelTask(Task t) {
+
+		if(t.cancelled || t.done || t.mode == Task.QUIT)
+			return false;
+
+		if(mDoLog) Log.d(TAG, "Cancelling " + t.modeName() + " " + t.in_url);
+
+		t.cancelled = true;
+		t.clearCallbacks();
+
+		// a task others are coalesced with keeps running as long as one of them waits for it
+		final Task task = t.leader != null ? t.leader : t;
+		if(task.isWanted())
+			return true;
+
+		task.abandon();
+		final String key = task.coalescingKey();
+		if(key != null && mInFlight.get(key) == task)
+			mInFlight.remove(key);
+
+		// a queued task stays where it is and is skipped by the worker taking it, removing it from
+		// the priority queue would cost O(n)
+		if(mRetrying.remove(task)) {
+			shutdownExecutorsIfDrained();
+			return true;
+		}
+
+		task.abortRequests();
+		for(CommThread w : mLanes[task.lane()].workers)
+			w.interruptTask(task);
+
+		return true;
+	}
+
+	/**
+	 * This is more a last-minute safety measure, as httpClient would otherwise hick up.
+	 * @param url
+	 * @return
+	 */
+	static String sanitizeUrl(String url) {
+		// eat up senseless blanks, would cause httpClient to hickup
+		url = url.replaceAll(" ", "");
+		// also, remove double shlashes except first pair
+		return url.replaceAll("(?<!:)//", "/");
+	}
+
+	/**
+	 * All characters except letters ('a'..'z', 'A'..'Z') and numbers ('0'..'9') and characters '.', '-', '*', '_' are converted into their hexadecimal value prepended by '%'. For example: '#' -> %23. In addition, spaces are substituted by '%20'.
+	 * @param url
+	 * @return
+	 */
+	public static String urlEncode(String url) {
 		try {
 			return URLEncoder.encode(url, "UTF-8").trim().replace("+", "%20");
 		} catch (Exception e) {
@@ -402,270 +1289,975 @@ public class RESTfulClient  {
 
 
 
-	private class CommThread extends Thread {
+	/**
+	 * Queues the given task. Must be called with the RESTfulClient lock held.
+	 */
+	private void addTask(Task t) {
+
+		final String key = t.coalescingKey();
+		final long sortKey = System.nanoTime() - t.priority * mPriorityAgingNanos;
+
+		t.metrics = new RESTfulRequestMetrics(t.modeName(), t.in_url, t.in_url != null ? hostOf(t.in_url) : null);
+		t.metrics.enqueuedAt = SystemClock.uptimeMillis();
+
+		if(key != null) {
+			Task leader = mInFlight.get(key);
+			// a call can only wait for one that gives up no earlier than itself
+			if(leader != null && leader.in_decoder == t.in_decoder
+					&& (t.deadline == 0 ? leader.deadline == 0 : leader.deadline != 0 && leader.deadline <= t.deadline)) {
+				// same request already queued or running, just wait for its result
+				if(mDoLog) Log.d(TAG, "coalescing with in-flight " + key);
+				t.metrics.coalesced = true;
+				t.leader = leader;
+				leader.followers.add(t);
+				// an urgent follower speeds up a leader that is still queued
+				Lane lane = mLanes[leader.lane()];
+				if(sortKey < leader.sortKey && lane.queue.remove(leader)) {
+					leader.sortKey = sortKey;
+					lane.add(leader);
+				}
+				return;
+			}
+			if(leader == null)
+				mInFlight.put(key, t);
+		}
 
-		private static final String TAG = "RESTfulCommThread";
-		private Task mCurrentTask;
-
-		class Task {
-			// constants
-			final static int MODE_GETSTRING = 0;
-			final static int MODE_GETJSON = 1;
-			final static int MODE_POSTJSON = 2;
-			final static int MODE_GETRAWDATA = 3;
-			final static int MODE_POSTMULTIPART = 4;
-			final static int MODE_GETFILE = 5;
-			final static int MODE_GETSIZE = 6;
-			final static int QUIT = 666;
-
-
-			// data, acted upon according to mode
-			private final int mode;
-			private String in_url;
-			private ArrayList<String> in_urllist;
-			private String out_string;
-			private byte[] out_ba;
-			private long out_size;
-			private String out_filename;
-			private JSONObject out_json;
-			private JSONObject in_json; // for POST JSON
-			private InputStream[] in_arr_is; // for POSTMULTIPART
-			private String[] in_arr_filenames; // for POSTMULTIPART
-			private String[] in_arr_mimetypes; // for POSTMULTIPART
-			private Handler callbackHandler; // handler to post callbacks to
-			private RESTfulInterface.OnGetStringCompleteListener getStringCallback;
-			private RESTfulInterface.OnGetRawDataCompleteListener getRawDataCallback;
-			private RESTfulInterface.OnGetJSONCompleteListener getJSONCallback;
-			private RESTfulInterface.OnPostJSONCompleteListener postJSONCallback;
-			private RESTfulInterface.OnPostMultipartProgressListener postMultipartProgressCallback;
-			private RESTfulInterface.OnPostMultipartCompleteListener postMultipartCompleteCallback;
-			private RESTfulInterface.OnGetFileProgressListener getFileProgressCallback;
-			private RESTfulInterface.OnGetFileCompleteListener getFileCompleteCallback;
-			private RESTfulInterface.OnGetSizeCompleteListener getSizeCompleteCallback;
-
-
-			public Task(int mode) {
-				this.mode = mode;
+		// waiting mPriorityAgingNanos is worth one priority level. As all queued tasks age at the same rate,
+		// ordering by this key is the same as ordering by aged priority at any later point in time.
+		t.sortKey = sortKey;
+		t.sequence = mTaskSequence.getAndIncrement();
+		mLanes[t.lane()].add(t);
+
+		if(t.deadline > 0)
+			scheduleQueueDeadline(t);
+	}
+
+	/**
+	 * Completes the given task with a timeout if its deadline passes while it is queued, instead of
+	 * when a worker gets to it. It stays in the queue and is skipped by the worker taking it.
+	 */
+	private void scheduleQueueDeadline(final Task task) {
+		task.queueDeadlineTimer = getRetryScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				// running, done or cancelled
+				if(task.abandoned || !task.claimed.compareAndSet(false, true))
+					return;
+				if(mDoLog) Log.w(TAG, "dropping " + task.modeName() + " " + task.in_url + ", deadline passed while queued");
+				task.error = new SocketTimeoutException("deadline passed while queued");
+				completeTask(task);
+			}
+		}, task.remainingMillis(), TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Posts the result of a finished task to its callback and to the callbacks of all calls that were
+	 * coalesced with it.
+	 */
+	private void completeTask(Task t) {
+
+		postCompletions(t);
+
+		// outside the lock, the listener may take its time
+		final RESTfulInterface.OnRequestMetricsListener listener = mMetricsListener;
+		reportMetrics(t.metrics, listener);
+		for(Task f : t.followers)
+			reportMetrics(f.metrics, listener);
+	}
+
+	private synchronized void postCompletions(Task t) { // do not interfere with cancelAll()
+
+		final String key = t.coalescingKey();
+		if(key != null && mInFlight.get(key) == t)
+			mInFlight.remove(key);
+
+		t.postCompletion();
+		t.done = true;
+
+		final long now = SystemClock.uptimeMillis();
+		synchronized (t.metrics) {
+			t.metrics.callbackPostedAt = now;
+			t.metrics.retryCount = Math.max(0, t.attempts - 1);
+			t.metrics.error = t.error;
+		}
+
+		for(Task f : t.followers) {
+			f.out_json = t.out_json;
+			f.out_object = t.out_object;
+			f.out_string = t.out_string;
+			f.out_ba = t.out_ba;
+			f.error = t.error;
+			f.postCompletion();
+			f.done = true;
+
+			synchronized (f.metrics) {
+				f.metrics.callbackPostedAt = now;
+				f.metrics.status = t.metrics.getStatus();
+				f.metrics.error = t.error;
+			}
+		}
+	}
+
+	private void reportMetrics(RESTfulRequestMetrics metrics, RESTfulInterface.OnRequestMetricsListener listener) {
+		mMetrics.record(metrics);
+		if(listener != null) {
+			try {
+				listener.onRequestMetrics(metrics);
+			} catch (RuntimeException e) {
+				if(mDoLog) Log.e(TAG, "metrics listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * @return The host of the url, null if it cannot be parsed.
+	 */
+	private static String hostOf(String url) {
+		try {
+			return new URI(url).getHost();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Orders tasks by aged priority, then FIFO. QUIT tasks go last so that quit() lets scheduled
+	 * operations finish.
+	 */
+	private static final Comparator<Task> TASK_ORDER = new Comparator<Task>() {
+		@Override
+		public int compare(Task a, Task b) {
+			boolean aQuit = a.mode == Task.QUIT;
+			boolean bQuit = b.mode == Task.QUIT;
+			if(aQuit != bQuit)
+				return aQuit ? 1 : -1;
+			if(a.sortKey != b.sortKey)
+				return a.sortKey < b.sortKey ? -1 : 1;
+			if(a.sequence != b.sequence)
+				return a.sequence < b.sequence ? -1 : 1;
+			return 0;
+		}
+	};
+
+
+	/**
+	 * A task queue together with the workers draining it. Each lane has its own concurrency limit,
+	 * a busy lane does not hold up tasks in another one. Workers are started as tasks come in and
+	 * end after the idle timeout.
+	 */
+	private class Lane {
+		private final String name;
+		private final int maxWorkers;
+		private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>(11, TASK_ORDER);
+		private final CopyOnWriteArrayList<CommThread> workers = new CopyOnWriteArrayList<CommThread>(); // running, for cancelling
+		private final AtomicInteger liveWorkers = new AtomicInteger(); // started and not ending
+		private final AtomicInteger idleWorkers = new AtomicInteger(); // waiting for a task
+		private final AtomicInteger workerIndex = new AtomicInteger();
+
+		Lane(String name, int maxWorkers) {
+			this.name = name;
+			this.maxWorkers = maxWorkers;
+		}
+
+		void add(Task t) {
+			queue.add(t);
+			startWorkerIfNeeded();
+		}
+
+		/**
+		 * Starts a worker unless enough are waiting already.
+		 */
+		void startWorkerIfNeeded() {
+			if(idleWorkers.get() < queue.size() && reserveWorker()) {
+				CommThread w = new CommThread(this, workerIndex.getAndIncrement());
+				workers.add(w);
+				w.start();
+			}
+		}
+
+		/**
+		 * Lets the workers end once all queued tasks are handled. Starts none.
+		 */
+		void quit() {
+			queue.add(new Task(Task.QUIT));
+		}
+
+		/**
+		 * @return Whether a worker may be started, in which case it is counted as live already.
+		 */
+		private boolean reserveWorker() {
+			while(true) {
+				int n = liveWorkers.get();
+				if(n >= maxWorkers)
+					return false;
+				if(liveWorkers.compareAndSet(n, n + 1))
+					return true;
+			}
+		}
+
+		/**
+		 * Called by a worker that timed out waiting for a task.
+		 * @return Whether the worker may end.
+		 */
+		boolean retire(CommThread w) {
+			liveWorkers.decrementAndGet();
+			// a task added while we timed out may have counted on us, see add()
+			if(!queue.isEmpty() && reserveWorker())
+				return false;
+			workers.remove(w);
+			return true;
+		}
+
+		void ended(CommThread w) {
+			liveWorkers.decrementAndGet();
+			workers.remove(w);
+			shutdownExecutorsIfDrained();
+		}
+	}
+
+
+	/**
+	 * A unit of work. All state of a running operation lives here, not in the worker executing it,
+	 * so several workers can run tasks concurrently.
+	 */
+	private class Task implements RESTfulRequestHandle {
+		// constants
+		final static int MODE_GETSTRING = 0;
+		final static int MODE_GETJSON = 1;
+		final static int MODE_POSTJSON = 2;
+		final static int MODE_GETRAWDATA = 3;
+		final static int MODE_POSTMULTIPART = 4;
+		final static int MODE_GETFILE = 5;
+		final static int MODE_GETSIZE = 6;
+		final static int MODE_GETDECODED = 7;
+		final static int MODE_GETBUFFER = 8;
+		final static int MODE_BATCH = 9;
+		final static int QUIT = 666;
+
+
+		// data, acted upon according to mode
+		private final int mode;
+		private int priority = PRIORITY_NORMAL;
+		private long sortKey; // set when queued
+		private long sequence; // set when queued
+		private final ArrayList<Task> followers = new ArrayList<Task>(); // coalesced calls waiting for this task's result
+		private Task leader; // for coalesced calls, the task whose result they get
+		private volatile boolean cancelled; // by cancel() or cancelAll()
+		private volatile boolean abandoned; // nobody wants the result anymore, a queued task is skipped
+		private volatile boolean done; // result posted
+		private final ArrayList<HttpUriRequest> requests = new ArrayList<HttpUriRequest>(); // of the running attempt, guarded by this task
+		private ProgressDispatcher progress; // for GETFILE and POSTMULTIPART, set by the worker
+		private RESTfulRetryPolicy retryPolicy; // null for the client's policy
+		private int connectTimeout; // 0 for the client's
+		private int readTimeout; // 0 for the client's
+		private long deadline; // uptime by which the call must be complete, 0 for none
+		private volatile boolean expired; // the deadline passed while running
+		private volatile ScheduledFuture<?> queueDeadlineTimer; // completes the task if the deadline passes while queued
+		private final AtomicBoolean claimed = new AtomicBoolean(); // taken from the queue, by a worker or by the deadline
+		private int attempts; // attempts started so far
+		private Throwable error; // why the last attempt failed, if it failed with an exception
+		private RESTfulRequestMetrics metrics; // set when queued
+		private String in_url;
+		private ArrayList<String> in_urllist;
+		private String out_string;
+		private byte[] out_ba;
+		private ByteBuffer out_buffer; // for GETBUFFER
+		private long out_size;
+		private long[] out_sizes;
+		private String out_filename;
+		private JSONObject out_json;
+		private Object out_object; // for GETDECODED
+		private RESTfulDecoder<?> in_decoder; // for GETDECODED
+		private JSONObject in_json; // for POST JSON
+		private ArrayList<RESTfulBatchRequest> in_batch; // for BATCH
+		private int in_fan_out; // for BATCH
+		private Object[] out_results; // for BATCH
+		private InputStream[] in_arr_is; // for POSTMULTIPART
+		private String[] in_arr_filenames; // for POSTMULTIPART
+		private String[] in_arr_mimetypes; // for POSTMULTIPART
+		private Handler callbackHandler; // handler to post callbacks to
+		private RESTfulInterface.OnGetStringCompleteListener getStringCallback;
+		private RESTfulInterface.OnGetRawDataCompleteListener getRawDataCallback;
+		private RESTfulInterface.OnGetRawDataBufferCompleteListener getRawDataBufferCallback;
+		private RESTfulInterface.OnGetJSONCompleteListener getJSONCallback;
+		private RESTfulInterface.OnGetDecodedCompleteListener<?> getDecodedCallback;
+		private RESTfulInterface.OnPostJSONCompleteListener postJSONCallback;
+		private RESTfulInterface.OnPostMultipartProgressListener postMultipartProgressCallback;
+		private RESTfulInterface.OnPostMultipartCompleteListener postMultipartCompleteCallback;
+		private RESTfulInterface.OnGetFileProgressListener getFileProgressCallback;
+		private RESTfulInterface.OnGetFileCompleteListener getFileCompleteCallback;
+		private RESTfulInterface.OnGetSizeCompleteListener getSizeCompleteCallback;
+		private RESTfulInterface.OnGetSizesCompleteListener getSizesCompleteCallback;
+		private RESTfulInterface.OnBatchItemCompleteListener batchItemCallback;
+		private RESTfulInterface.OnBatchCompleteListener batchCompleteCallback;
+
+
+		public Task(int mode) {
+			this.mode = mode;
+		}
+
+		@Override
+		public boolean cancel() {
+			return cancelTask(this);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * @return Whether this task's own call or any call coalesced with it still wants the result.
+		 * Must be called with the RESTfulClient lock held.
+		 */
+		boolean isWanted() {
+			if(!cancelled)
+				return true;
+			for(Task f : followers)
+				if(!f.cancelled)
+					return true;
+			return false;
+		}
+
+		/**
+		 * Remembers a request of the running attempt, so that cancelling the task can abort it.
+		 * @return false if the task was abandoned and the request must not be sent.
+		 */
+		synchronized boolean addRequest(HttpUriRequest request) {
+			if(abandoned || expired)
+				return false;
+			requests.add(request);
+			return true;
+		}
+
+		synchronized void clearRequests() {
+			requests.clear();
+		}
+
+		/**
+		 * Aborts the requests of the running attempt, which releases their connections and makes
+		 * blocked reads fail right away.
+		 */
+		synchronized void abortRequests() {
+			for(HttpUriRequest r : requests)
+				r.abort();
+			requests.clear();
+		}
+
+		/**
+		 * @return The name of this task's mode, for metrics and logs.
+		 */
+		String modeName() {
+			switch (mode) {
+				case MODE_GETSTRING: return "GETSTRING";
+				case MODE_GETJSON: return "GETJSON";
+				case MODE_POSTJSON: return "POSTJSON";
+				case MODE_GETRAWDATA: return "GETRAWDATA";
+				case MODE_POSTMULTIPART: return "POSTMULTIPART";
+				case MODE_GETFILE: return "GETFILE";
+				case MODE_GETSIZE: return "GETSIZE";
+				case MODE_GETDECODED: return "GETDECODED";
+				case MODE_GETBUFFER: return "GETBUFFER";
+				case MODE_BATCH: return "BATCH";
+				default: return "QUIT";
+			}
+		}
+
+		void applyOptions(RESTfulRequestOptions options) {
+			priority = options.priority;
+			retryPolicy = options.retryPolicy;
+			connectTimeout = options.connectTimeoutMillis;
+			readTimeout = options.readTimeoutMillis;
+			if(options.deadlineMillis > 0)
+				deadline = SystemClock.uptimeMillis() + options.deadlineMillis;
+		}
+
+		/**
+		 * @return Milliseconds left until the deadline, Long.MAX_VALUE without one.
+		 */
+		long remainingMillis() {
+			return deadline > 0 ? deadline - SystemClock.uptimeMillis() : Long.MAX_VALUE;
+		}
+
+		/**
+		 * @return Whether a failed attempt can be repeated at all. Batches consist of several requests,
+		 * multipart streams can only be sent once.
+		 */
+		boolean isRetryable() {
+			return mode != MODE_BATCH && mode != MODE_POSTMULTIPART && mode != QUIT;
+		}
+
+		/**
+		 * @return Whether repeating the request has no further side effects.
+		 */
+		boolean isIdempotent() {
+			return mode != MODE_POSTJSON && mode != MODE_POSTMULTIPART;
+		}
+
+		/**
+		 * @return The LANE_* constant of the lane serving tasks of this mode.
+		 */
+		int lane() {
+			switch (mode) {
+				case MODE_GETFILE:
+				case MODE_POSTMULTIPART:
+				case MODE_GETSIZE:
+					return LANE_BULK;
+				default:
+					return LANE_INTERACTIVE;
+			}
+		}
+
+		/**
+		 * Creates a message for this task's callback handler, tagged so that cancelAll() can remove it.
+		 * It does nothing if the task gets cancelled before it is run.
+		 */
+		Message taggedMsgFromHandlerAndRunnable(final Runnable r) {
+			Message m = Message.obtain(callbackHandler, new Runnable() {
+				@Override
+				public void run() {
+					if(!cancelled)
+						r.run();
+				}
+			});
+			m.obj = RESTfulClient.this;
+			return m;
+		}
+
+		/**
+		 * Identical GETs whose result can be shared have the same key, all others return null.
+		 * There is only one request per client, so session cookies and credentials are the same anyway.
+		 */
+		String coalescingKey() {
+			switch (mode) {
+				case MODE_GETJSON:
+				case MODE_GETSTRING:
+				case MODE_GETRAWDATA:
+					return mode + " GET " + in_url;
+				case MODE_GETDECODED:
+					// only calls with the very same decoder can share results, see addTask()
+					return mode + " GET " + in_url + " " + System.identityHashCode(in_decoder);
+				default:
+					return null;
+			}
+		}
+
+		/**
+		 * Posts the complete callback with this task's result. Must be called with the RESTfulClient lock held.
+		 */
+		@SuppressWarnings("unchecked")
+		void postCompletion() {
+			Runnable r = null;
+
+			switch (mode) {
+				case MODE_GETDECODED:
+					final RESTfulInterface.OnGetDecodedCompleteListener<Object> gdc = (RESTfulInterface.OnGetDecodedCompleteListener<Object>) getDecodedCallback;
+					final Object gdo = out_object;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try{
+								gdc.onComplete(gdo);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+
+				case MODE_GETJSON:
+					final RESTfulInterface.OnGetJSONCompleteListener gjc = getJSONCallback;
+					final JSONObject gjjo = out_json;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try{
+								gjc.onComplete(gjjo);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+
+				case MODE_GETSTRING:
+					final RESTfulInterface.OnGetStringCompleteListener gsc = getStringCallback;
+					final String gss = out_string;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try {
+								gsc.onComplete(gss);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+
+				case MODE_GETRAWDATA:
+					final RESTfulInterface.OnGetRawDataCompleteListener grdc = getRawDataCallback;
+					final byte[] grdba = out_ba;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try{
+								grdc.onComplete(grdba);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+
+				case MODE_GETBUFFER:
+					final RESTfulInterface.OnGetRawDataBufferCompleteListener gbc = getRawDataBufferCallback;
+					final ByteBuffer gbb = out_buffer;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try{
+								gbc.onComplete(gbb);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+
+				case MODE_BATCH:
+					final RESTfulInterface.OnBatchCompleteListener bc = batchCompleteCallback;
+					final Object[] bres = out_results;
+					if(bc != null) // check for null
+						r = new Runnable() {
+							@Override
+							public void run() {
+								try {
+									bc.onComplete(bres);
+								}
+								catch(NullPointerException e) {
+									//unused
+								}
+							}
+						};
+					break;
+
+				case MODE_POSTJSON:
+					final RESTfulInterface.OnPostJSONCompleteListener pjc = postJSONCallback;
+					final String pjs = out_string;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try {
+								pjc.onComplete(pjs);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+
+				case MODE_POSTMULTIPART:
+					final RESTfulInterface.OnPostMultipartCompleteListener pmc = postMultipartCompleteCallback;
+					final String pmps = out_string;
+					if(pmc != null) // check for null
+						r = new Runnable() {
+							@Override
+							public void run() {
+								try {
+									pmc.onComplete(pmps);
+								}
+								catch(NullPointerException e) {
+									//unused
+								}
+							}
+						};
+					break;
+
+				case MODE_GETFILE:
+					final RESTfulInterface.OnGetFileCompleteListener gfc = getFileCompleteCallback;
+					final String gfcs = out_string;
+					if(gfc != null) // check for null
+						r = new Runnable() {
+							@Override
+							public void run() {
+								try {
+									gfc.onComplete(gfcs);
+								}
+								catch(NullPointerException e) {
+									//unused
+								}
+							}
+						};
+					break;
+
+				case MODE_GETSIZE:
+					final RESTfulInterface.OnGetSizeCompleteListener gszc = getSizeCompleteCallback;
+					final RESTfulInterface.OnGetSizesCompleteListener gsszc = getSizesCompleteCallback;
+					final long gsl = out_size;
+					final long[] gsla = out_sizes;
+					r = new Runnable() {
+						@Override
+						public void run() {
+							try {
+								if(gsszc != null)
+									gsszc.onComplete(gsl, gsla);
+								else
+									gszc.onComplete(gsl);
+							}
+							catch(NullPointerException e) {
+								//unused
+							}
+						}
+					};
+					break;
+			}
+
+			if(callbackHandler == null)
+				return;
+
+			// the error goes first, so the complete callback knows why it gets null
+			final Object cb = completeCallback();
+			if(error != null && cb instanceof RESTfulInterface.OnErrorListener) {
+				final Throwable e = error;
+				callbackHandler.sendMessage(taggedMsgFromHandlerAndRunnable(new Runnable() {
+					@Override
+					public void run() {
+						((RESTfulInterface.OnErrorListener) cb).onError(e);
+					}
+				}));
+			}
+
+			if(r != null)
+				callbackHandler.sendMessage(taggedMsgFromHandlerAndRunnable(r));
+		}
+
+		/**
+		 * @return The complete callback of this task's mode, may be null.
+		 */
+		private Object completeCallback() {
+			switch (mode) {
+				case MODE_GETSTRING: return getStringCallback;
+				case MODE_GETJSON: return getJSONCallback;
+				case MODE_POSTJSON: return postJSONCallback;
+				case MODE_GETRAWDATA: return getRawDataCallback;
+				case MODE_POSTMULTIPART: return postMultipartCompleteCallback;
+				case MODE_GETFILE: return getFileCompleteCallback;
+				case MODE_GETSIZE: return getSizesCompleteCallback != null ? getSizesCompleteCallback : getSizeCompleteCallback;
+				case MODE_GETDECODED: return getDecodedCallback;
+				case MODE_GETBUFFER: return getRawDataBufferCallback;
+				case MODE_BATCH: return batchCompleteCallback;
+				default: return null;
 			}
 		}
 
-		private ConcurrentLinkedQueue<Task> mTaskQueue = new ConcurrentLinkedQueue<Task>(); //BlockingQueue instead?
+		/**
+		 * Must be called with the RESTfulClient lock held.
+		 */
+		void disconnectCallbacks() {
+			cancelled = true;
+			clearCallbacks();
+			// remove maybe-posted runnables we posted
+			if(callbackHandler != null)
+				callbackHandler.removeCallbacksAndMessages(RESTfulClient.this);
+			for(Task f : followers)
+				f.disconnectCallbacks();
+		}
+
+		/**
+		 * Marks this task as no longer wanted, so that no worker and no timer completes it.
+		 */
+		void abandon() {
+			abandoned = true;
+			final ScheduledFuture<?> timer = queueDeadlineTimer;
+			if(timer != null)
+				timer.cancel(false);
+		}
+
+		/**
+		 * Drops this task's own callbacks. Must be called with the RESTfulClient lock held.
+		 */
+		void clearCallbacks() {
+			postJSONCallback = null;
+			getJSONCallback = null;
+			getDecodedCallback = null;
+			getStringCallback = null;
+			getRawDataCallback = null;
+			getRawDataBufferCallback = null;
+			postMultipartProgressCallback = null;
+			postMultipartCompleteCallback = null;
+			getFileProgressCallback = null;
+			getFileCompleteCallback = null;
+			getSizeCompleteCallback = null;
+			getSizesCompleteCallback = null;
+			batchItemCallback = null;
+			batchCompleteCallback = null;
+		}
+	}
+
+
+	/**
+	 * A body from the response cache.
+	 */
+	private static class CachedEntity extends ByteArrayEntity {
+
+		CachedEntity(byte[] body) {
+			super(body);
+		}
+
+		/**
+		 * @return The body without copying it. Read-only, as the cache keeps using it.
+		 */
+		ByteBuffer buffer() {
+			return ByteBuffer.wrap(content).asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * A cacheable response whose body the caller reads and then hands to store(), see executeGet().
+	 */
+	private static class CacheableEntity extends HttpEntityWrapper {
+
+		private final RESTfulResponseCache mCache;
+		private final String mKey;
+		private final HttpResponse mResponse;
+		private final long mFetchedAt;
+
+		CacheableEntity(HttpEntity body, RESTfulResponseCache cache, String key, HttpResponse response, long fetchedAt) {
+			super(body);
+			mCache = cache;
+			mKey = key;
+			mResponse = response;
+			mFetchedAt = fetchedAt;
+		}
+
+		/**
+		 * @param body The complete body, not to be modified afterwards.
+		 */
+		void store(byte[] body) {
+			mCache.put(RESTfulResponseCache.entryFromResponse(mKey, mResponse, body, mFetchedAt));
+		}
+	}
+
+
+
+	private class CommThread extends Thread {
+
+		private static final String TAG = "RESTfulCommThread";
+		private final Lane mLane;
+		private final PriorityBlockingQueue<Task> mTaskQueue; // the queue of our lane
+		private volatile Task mCurrentTask; // the running task, for cancelling it and to find it from helper threads
+
+		// first failure of the current attempt, may be reported by helper threads, too
+		private int mFailureStatus;
+		private Throwable mFailure;
+		private long mRetryAfterMillis;
+
+		CommThread(Lane lane, int index) {
+			super("RESTfulCommThread-" + lane.name + "-" + index);
+			mLane = lane;
+			mTaskQueue = lane.queue;
+		}
 
+		/**
+		 * Aborts the given task's attempt when its deadline passes.
+		 */
+		private ScheduledFuture<?> scheduleDeadline(final Task task) {
+			return getRetryScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if(mDoLog) Log.w(TAG, "deadline passed, aborting " + task.modeName() + " " + task.in_url);
+					task.expired = true;
+					task.abortRequests();
+					interruptTask(task);
+				}
+			}, Math.max(0, task.remainingMillis()), TimeUnit.MILLISECONDS);
+		}
 
-        Message taggedMsgFromCurrentTaskHandlerAndRunnable(Runnable r) {
-            Message m = Message.obtain(mCurrentTask.callbackHandler, r);
-            m.obj = RESTfulClient.this;
-            return m;
-        }
+		/**
+		 * Interrupts this worker if it is still running the given task, waking it from waits a request
+		 * abort does not end, e.g. for segments or batch requests on helper threads.
+		 */
+		synchronized void interruptTask(Task task) {
+			if(mCurrentTask == task)
+				interrupt();
+		}
 
 
 		public void run() {
 
 			if(mDoLog) Log.d(TAG, "Saying Hellooo!");
 
-			boolean quit = false;
-			while(!quit) {
+			while(true) {
+
+				final Task task;
+
+				final long idleMillis = mWorkerIdleTimeoutMillis;
+				mLane.idleWorkers.incrementAndGet();
+				try {
+					task = idleMillis > 0 ? mTaskQueue.poll(idleMillis, TimeUnit.MILLISECONDS) : mTaskQueue.take();
+				} catch (InterruptedException e) {
+					if (mDoLog) Log.d(TAG, "woke up!!");
+					continue;
+				} finally {
+					mLane.idleWorkers.decrementAndGet();
+				}
 
-                synchronized (mTaskQueue) {
+				if(task == null) {
+					if(mLane.retire(this)) {
+						if(mDoLog) Log.d(TAG, "idle, ending");
+						break;
+					}
+					continue;
+				}
 
-                    mCurrentTask = mTaskQueue.poll();
+				if(task.mode == Task.QUIT) {
+					if(mDoLog) Log.d(TAG, "got QUIT");
+					// the other workers of the lane need to see it as well
+					mTaskQueue.add(task);
+					mLane.ended(this);
+					break;
+				}
 
-                    // if queue empty, wait and re-run loop
-                    if (mCurrentTask == null) {
+				// we still counted as waiting when a task was added meanwhile, see Lane.add()
+				mLane.startWorkerIfNeeded();
 
-                        try {
-                            if (mDoLog) Log.d(TAG, "nothing to do, waiting...");
-                            mTaskQueue.wait(); // this releases the lock at puts the thread on the waiting list
-                        } catch (InterruptedException e) {
-                            if (mDoLog) Log.d(TAG, "woke up!!");
-                        }
+				if(task.abandoned) {
+					if(mDoLog) Log.d(TAG, "skipping cancelled " + task.modeName() + " " + task.in_url);
+					continue;
+				}
 
-                        // get queue head
-                        continue;
-                    }
+				// already completed when its deadline passed
+				if(!task.claimed.compareAndSet(false, true))
+					continue;
 
-                }
+				// too late to be of use, don't spend a connection on it
+				if(task.remainingMillis() <= 0) {
+					if(mDoLog) Log.w(TAG, "dropping " + task.modeName() + " " + task.in_url + ", deadline passed while queued");
+					task.error = new SocketTimeoutException("deadline passed while queued");
+					completeTask(task);
+					continue;
+				}
 
+				synchronized (this) {
+					mCurrentTask = task;
+				}
+				resetFailure();
+				task.attempts++;
+				if(task.metrics != null)
+					task.metrics.beginAttempt(SystemClock.uptimeMillis());
+				final ScheduledFuture<?> deadlineTimer = task.deadline > 0 ? scheduleDeadline(task) : null;
 
 				// there is something
 				try {
-					switch (mCurrentTask.mode) {
+					switch (task.mode) {
 
-					case Task.QUIT:
-						if(mDoLog) Log.d(TAG, "got QUIT");
-						quit = true;
+					case Task.MODE_GETJSON:
+						if(mDoLog) Log.d(TAG, "got GETJSON " + task.in_url);
+						printCookies();
+						task.out_json = getJSON(task.in_url);
 						break;
 
-					case Task.MODE_GETJSON:
-						if(mDoLog) Log.d(TAG, "got GETJSON " + mCurrentTask.in_url);
+					case Task.MODE_GETDECODED:
+						if(mDoLog) Log.d(TAG, "got GETDECODED " + task.in_url);
 						printCookies();
-						mCurrentTask.out_json = getJSON(mCurrentTask.in_url);
-						// currentTask could be something other at time of runnable execution
-						final RESTfulInterface.OnGetJSONCompleteListener gjc = mCurrentTask.getJSONCallback;
-						final JSONObject gjjo = mCurrentTask.out_json;
-						synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-							mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-								@Override
-								public void run() {
-									try{
-										gjc.onComplete(gjjo);
-									}
-									catch(NullPointerException e) {
-										//unused
-									}
-								}
-							}));
-						}
+						task.out_object = getDecoded("getJSON", task.in_url, task.in_decoder);
 						break;
 
 					case Task.MODE_GETSTRING:
-						if(mDoLog) Log.d(TAG, "got GETSTRING " + mCurrentTask.in_url);
+						if(mDoLog) Log.d(TAG, "got GETSTRING " + task.in_url);
 						printCookies();
-						mCurrentTask.out_string = getString(mCurrentTask.in_url);
-						// currentTask could be something other at time of runnable execution
-						final RESTfulInterface.OnGetStringCompleteListener gsc = mCurrentTask.getStringCallback;
-						final String gss = mCurrentTask.out_string;
-						synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-							mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-								@Override
-								public void run() {
-									try {
-										gsc.onComplete(gss);
-									}
-									catch(NullPointerException e) {
-										//unused
-									}
-								}
-							}));
-						}
+						task.out_string = getString(task.in_url);
 						break;
 
 					case Task.MODE_GETRAWDATA:
-						if(mDoLog) Log.d(TAG, "got GETRAWDATA " + mCurrentTask.in_url);
+						if(mDoLog) Log.d(TAG, "got GETRAWDATA " + task.in_url);
 						printCookies();
-						mCurrentTask.out_ba = getRawData(mCurrentTask.in_url);
-						// currentTask could be something other at time of runnable execution
-						final RESTfulInterface.OnGetRawDataCompleteListener grdc = mCurrentTask.getRawDataCallback;
-						final byte[] grdba = mCurrentTask.out_ba;
-						synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-							mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-								@Override
-								public void run() {
-									try{
-										grdc.onComplete(grdba);
-									}
-									catch(NullPointerException e) {
-										//unused
-									}
-								}
-							}));
-						}
+						task.out_ba = getRawData(task.in_url);
+						break;
+
+					case Task.MODE_GETBUFFER:
+						if(mDoLog) Log.d(TAG, "got GETBUFFER " + task.in_url);
+						printCookies();
+						task.out_buffer = getRawDataBuffer(task.in_url);
+						break;
+
+					case Task.MODE_BATCH:
+						if(mDoLog) Log.d(TAG, "got BATCH of " + task.in_batch.size());
+						printCookies();
+						task.out_results = runBatch(task);
 						break;
 
 					case Task.MODE_POSTJSON:
-						if(mDoLog) Log.d(TAG, "got POSTJSON " + mCurrentTask.in_url + " " + mCurrentTask.in_json.toString());
+						if(mDoLog) Log.d(TAG, "got POSTJSON " + task.in_url + " " + task.in_json.toString());
 						printCookies();
-						mCurrentTask.out_string = postJSON(mCurrentTask.in_url, mCurrentTask.in_json);
-						synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-							// currentTask could be something other at time of runnable execution
-							final RESTfulInterface.OnPostJSONCompleteListener pjc = mCurrentTask.postJSONCallback;
-							final String pjs = mCurrentTask.out_string;
-							mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-								@Override
-								public void run() {
-									try {
-										pjc.onComplete(pjs);
-									}
-									catch(NullPointerException e) {
-										//unused
-									}
-								}
-							}));
-						}
+						task.out_string = postJSON(task.in_url, task.in_json);
 						break;
 
 					case Task.MODE_POSTMULTIPART:
-						if(mDoLog) Log.d(TAG, "got POSTMULTIPART " + mCurrentTask.in_url + " count " + mCurrentTask.in_arr_is.length);
+						if(mDoLog) Log.d(TAG, "got POSTMULTIPART " + task.in_url + " count " + task.in_arr_is.length);
 						printCookies();
-						// here the callback is called from within the worker method
-						mCurrentTask.out_string = postMultipart(
-								mCurrentTask.in_url,
-								mCurrentTask.in_arr_is,
-								mCurrentTask.in_arr_mimetypes,
-								mCurrentTask.in_arr_filenames,
-								mCurrentTask.postMultipartProgressCallback);
-						synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-							// currentTask could be something other at time of runnable execution
-							final RESTfulInterface.OnPostMultipartCompleteListener pmc = mCurrentTask.postMultipartCompleteCallback;
-							final String pmps = mCurrentTask.out_string;
-							if(pmc != null) // check for null
-								mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-									@Override
-									public void run() {
-										try {
-											pmc.onComplete(pmps);
-										}
-										catch(NullPointerException e) {
-											//unused
-										}
-									}
-								}));
-						}
+						// here the progress callback is called from within the worker method
+						task.out_string = postMultipart(task);
 						break;
 
+					case Task.MODE_GETFILE:
+						if(mDoLog) Log.d(TAG, "got getfile " + task.in_url + " to " + task.out_filename);
+						printCookies();
+						// here the progress callback is called from within the worker method
+						task.out_string = getFile(task);
+						break;
 
-						case Task.MODE_GETFILE:
-							if(mDoLog) Log.d(TAG, "got getfile " + mCurrentTask.in_url + " to " + mCurrentTask.out_filename);
-							printCookies();
-							// here the callback is called from within the worker method
-							mCurrentTask.out_string = getFile(
-									mCurrentTask.in_url,
-									mCurrentTask.out_filename,
-									mCurrentTask.getFileProgressCallback);
-							synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-								// currentTask could be something other at time of runnable execution
-								final RESTfulInterface.OnGetFileCompleteListener gfc = mCurrentTask.getFileCompleteCallback;
-								final String gfcs = mCurrentTask.out_string;
-								if(gfc != null) // check for null
-									mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-										@Override
-										public void run() {
-											try {
-												gfc.onComplete(gfcs);
-											}
-											catch(NullPointerException e) {
-												//unused
-											}
-										}
-									}));
-							}
-							break;
-
-						case Task.MODE_GETSIZE:
-							if(mDoLog) Log.d(TAG, "got GETSIZE ");
-							printCookies();
-							mCurrentTask.out_size = getSize(mCurrentTask.in_urllist);
-							// currentTask could be something other at time of runnable execution
-							final RESTfulInterface.OnGetSizeCompleteListener gszc = mCurrentTask.getSizeCompleteCallback;
-							final long gsl = mCurrentTask.out_size;
-							synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-								mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-									@Override
-									public void run() {
-										try {
-											gszc.onComplete(gsl);
-										}
-										catch(NullPointerException e) {
-											//unused
-										}
-									}
-								}));
-							}
-							break;
+					case Task.MODE_GETSIZE:
+						if(mDoLog) Log.d(TAG, "got GETSIZE ");
+						printCookies();
+						long[] sizes = new long[task.in_urllist.size()];
+						task.out_size = getSize(task.in_urllist, sizes);
+						task.out_sizes = task.out_size >= 0 ? sizes : null;
+						break;
+
+					}
 
+					// last progress goes out before the result
+					if(task.progress != null)
+						task.progress.flush();
+
+					// a cancelled task has nobody to tell
+					if(!task.abandoned && !scheduleRetry(task)) {
+						task.error = task.expired ? new SocketTimeoutException("deadline passed") : getFailure();
+						completeTask(task);
 					}
+
 				} catch (Exception e) {
-					//TODO tell caller
+					// don't leave the caller waiting on a bug
+					if(mDoLog) Log.e(TAG, task.modeName() + " " + task.in_url + " failed unexpectedly", e);
+					failed(e);
+					if(!task.abandoned && !task.done) {
+						task.error = task.expired ? new SocketTimeoutException("deadline passed") : getFailure();
+						completeTask(task);
+					}
+				} finally {
+					if(deadlineTimer != null)
+						deadlineTimer.cancel(false);
+					task.clearRequests();
+					synchronized (this) {
+						mCurrentTask = null;
+						// an interrupt by cancelling was meant for the task just finished, not the next one
+						interrupted();
+					}
 				}
 
 			}
@@ -675,6 +2267,165 @@ public class RESTfulClient  {
 		}
 
 
+		/**
+		 * Executes a request unless the circuit of its host is open, reporting the outcome to the
+		 * circuit breaker. May be called from helper threads.
+		 */
+		private HttpResponse execute(HttpUriRequest request) throws IOException {
+			final RESTfulCircuitBreaker breaker = mCircuitBreaker;
+			if(breaker == null)
+				return send(request);
+
+			final String host = request.getURI().getHost();
+			final Object permit = breaker.allowRequest(host);
+			if(permit == null) {
+				if(mDoLog) Log.w(TAG, "circuit open, not sending " + request.getURI());
+				throw new RESTfulCircuitOpenException(host, breaker.getRemainingOpenMillis(host));
+			}
+
+			boolean reported = false;
+			try {
+				HttpResponse response = send(request);
+				if(response.getStatusLine().getStatusCode() >= 500)
+					breaker.failed(host, permit);
+				else
+					breaker.succeeded(host, permit);
+				reported = true;
+				return response;
+			} catch (IOException e) {
+				// an abort by cancelling says nothing about the host
+				final Task task = mCurrentTask;
+				if(!isInterrupted() && (task == null || !task.abandoned)) {
+					breaker.failed(host, permit);
+					reported = true;
+				}
+				throw e;
+			} finally {
+				if(!reported)
+					breaker.abandoned(host, permit);
+			}
+		}
+
+		/**
+		 * Executes a request, recording its timing and traffic to the metrics of the current task.
+		 */
+		private HttpResponse send(HttpUriRequest request) throws IOException {
+			final Task task = mCurrentTask;
+			if(task != null && !task.addRequest(request))
+				throw new IOException("request cancelled");
+			if(task != null)
+				applyTimeouts(request, task);
+			if(task == null || task.metrics == null)
+				return mHttpClient.execute(request);
+
+			HttpContext context = new BasicHttpContext();
+			context.setAttribute(MetricsRequestExecutor.CONTEXT_METRICS, task.metrics);
+			HttpResponse response = mHttpClient.execute(request, context);
+			MetricsRequestExecutor.countResponse(response, task.metrics);
+			return response;
+		}
+
+		/**
+		 * Sets the task's timeouts on the request, cut down to what is left of its deadline.
+		 */
+		private void applyTimeouts(HttpUriRequest request, Task task) {
+			long connect = task.connectTimeout > 0 ? task.connectTimeout : mConnectTimeoutMillis;
+			long read = task.readTimeout > 0 ? task.readTimeout : mReadTimeoutMillis;
+			final long remaining = task.remainingMillis();
+			if(remaining != Long.MAX_VALUE) {
+				// 0 would mean no timeout at all
+				connect = Math.max(1, Math.min(connect, remaining));
+				read = Math.max(1, Math.min(read, remaining));
+			}
+			HttpConnectionParams.setConnectionTimeout(request.getParams(), (int) connect);
+			HttpConnectionParams.setSoTimeout(request.getParams(), (int) read);
+		}
+
+		/**
+		 * Records an error response of the current attempt.
+		 */
+		private synchronized void failed(HttpResponse response) {
+			if(mFailureStatus != 0 || mFailure != null)
+				return;
+			mFailureStatus = response.getStatusLine().getStatusCode();
+			mRetryAfterMillis = parseRetryAfter(getHeaderValue(response, "Retry-After"));
+		}
+
+		/**
+		 * Records an exception of the current attempt.
+		 */
+		private synchronized void failed(Throwable e) {
+			if(mFailureStatus != 0 || mFailure != null)
+				return;
+			mFailure = e;
+		}
+
+		private synchronized Throwable getFailure() {
+			return mFailure;
+		}
+
+		private synchronized void resetFailure() {
+			mFailureStatus = 0;
+			mFailure = null;
+			mRetryAfterMillis = -1;
+		}
+
+		/**
+		 * Schedules another attempt of a failed task if its retry policy says so.
+		 * @return true if the task will be retried and must not be completed now.
+		 */
+		private boolean scheduleRetry(Task task) {
+			final int status;
+			final Throwable failure;
+			final long retryAfterMillis;
+			synchronized (this) {
+				status = mFailureStatus;
+				failure = mFailure;
+				retryAfterMillis = mRetryAfterMillis;
+			}
+
+			// succeeded, cancelled, out of time or not repeatable
+			if((status == 0 && failure == null) || isInterrupted() || task.abandoned || task.expired || !task.isRetryable())
+				return false;
+
+			RESTfulRetryPolicy policy = task.retryPolicy != null ? task.retryPolicy : mRetryPolicy;
+			if(!policy.shouldRetry(task.attempts, task.isIdempotent(), status, failure))
+				return false;
+
+			long delay = policy.getDelayMillis(task.attempts, retryAfterMillis);
+			if(delay < 0) {
+				if(mDoLog) Log.w(TAG, "not retrying " + task.in_url + ", server asked to wait " + retryAfterMillis + " ms");
+				return false;
+			}
+			// the deadline counts across attempts
+			if(delay >= task.remainingMillis()) {
+				if(mDoLog) Log.w(TAG, "not retrying " + task.in_url + ", deadline would pass before");
+				return false;
+			}
+
+			if(mDoLog) Log.i(TAG, "retrying " + task.in_url + " in " + delay + " ms, attempt " + (task.attempts + 1)
+					+ (failure != null ? " after " + failure : " after status " + status));
+			return scheduleAttempt(task, delay);
+		}
+
+		/**
+		 * @return Milliseconds to wait as asked for by a Retry-After header value, -1 if there is none.
+		 */
+		private long parseRetryAfter(String value) {
+			if(value == null)
+				return -1;
+			try {
+				return Math.max(0, Long.parseLong(value.trim()) * 1000);
+			} catch (NumberFormatException e) {
+				try {
+					return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+				} catch (DateParseException e1) {
+					return -1;
+				}
+			}
+		}
+
+
 		private void printCookies() {
 			List<Cookie> cookies = getCookies();
 
@@ -689,67 +2440,147 @@ public class RESTfulClient  {
 				}
 		}
 
-		final ConcurrentLinkedQueue<Task> getQueue() {
-			return mTaskQueue;
-		}
 
-		void addTask(Task t) {
-			mTaskQueue.add(t);
-			synchronized (mTaskQueue) {
-				mTaskQueue.notify();
-			}
-		}
 
 
+		/**
+		 * @return The response cache key of a GET of url. It covers the cookies and credentials the request
+		 * will be sent with, so that a cached response is only served to the session it was fetched for.
+		 */
+		private String cacheKey(String url) {
+			final URI uri;
+			try {
+				uri = new URI(url);
+			} catch (URISyntaxException e) {
+				return url;
+			}
+			final String host = uri.getHost();
+			if(host == null)
+				return url;
+			final boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+			final int port = uri.getPort() >= 0 ? uri.getPort() : (secure ? 443 : 80);
+			final String path = uri.getRawPath() != null && uri.getRawPath().length() > 0 ? uri.getRawPath() : "/";
+
+			// the cookies HttpClient is going to add
+			final ArrayList<String> session = new ArrayList<String>();
+			final CookieSpec spec = mHttpClient.getCookieSpecs().getCookieSpec(
+					HttpClientParams.getCookiePolicy(mHttpClient.getParams()), mHttpClient.getParams());
+			final CookieOrigin origin = new CookieOrigin(host, port, path, secure);
+			final Date now = new Date();
+			for(Cookie c : mHttpClient.getCookieStore().getCookies())
+				if(!c.isExpired(now) && spec.match(c, origin))
+					session.add(c.getName() + "=" + c.getValue());
+			Collections.sort(session);
+
+			final Credentials credentials = mHttpClient.getCredentialsProvider().getCredentials(new AuthScope(host, port));
+			if(credentials != null)
+				session.add(credentials.getUserPrincipal().getName() + ":" + credentials.getPassword());
+
+			return RESTfulResponseCache.key(url, session.isEmpty() ? null : session.toString());
+		}
 
+		/**
+		 * Does a GET, using the response cache if there is one. Fresh cached responses are returned
+		 * without network access, stale ones are revalidated.
+		 * @param what Name of the calling operation, for logging.
+		 * @param url
+		 * @return The entity to read the body from or null if there is none or the server answered with an error.
+		 */
+		private HttpEntity executeGet(String what, String url) throws IOException {
+			return executeGet(what, url, true);
+		}
 
-		private String getString(String url)
-		{
-			if(mDoLog) Log.i(TAG, "getString on " +url);
+		/**
+		 * @param storeBody Whether to read and store the body of a cacheable response here. If not, such a
+		 *                  response comes as a CacheableEntity for the caller to store. Cached bodies come as
+		 *                  a CachedEntity either way.
+		 */
+		private HttpEntity executeGet(String what, String url, boolean storeBody) throws IOException {
+
+			final RESTfulResponseCache cache = mResponseCache;
+			final long now = System.currentTimeMillis();
+			RESTfulResponseCache.Entry cached = null;
+
+			final String key = cache != null ? cacheKey(url) : null;
+			if(cache != null) {
+				cached = cache.get(key);
+				if(cached != null && cached.isFresh(now)) {
+					if(mDoLog) Log.i(TAG, what + " cache hit for query " + url);
+					cache.countHit();
+					return new CachedEntity(cached.body);
+				}
+			}
 
 			HttpGet httpGet = new HttpGet(url);
+			httpGet.setHeader("Accept-Encoding", ContentEncoding.ACCEPT_ENCODING);
+			if(cached != null)
+				cached.addValidators(httpGet);
+
+			HttpResponse response = execute(httpGet);
+			final int status = response.getStatusLine().getStatusCode();
+
+			if (cached != null && status == HttpStatus.SC_NOT_MODIFIED) {
+				if(response.getEntity() != null)
+					response.getEntity().consumeContent();
+				if(mDoLog) Log.i(TAG, what + " not modified for query " + url);
+				cache.countConditionalHit();
+				cache.put(cached.revalidated(response, now));
+				return new CachedEntity(cached.body);
+			}
 
-			try {
-				HttpResponse response = mHttpClient.execute(httpGet);
+			if (status != HttpStatus.SC_OK) {
+				failed(response);
+				// we assume that the response body contains the error message
+				HttpEntity entity = response.getEntity();
+				if(entity != null) {
+					String error = RESTfulBufferPool.toString(entity);
+					if(mDoLog) Log.e(TAG, what + " Error: " + error);
+				}
+				else
+					if(mDoLog) Log.e(TAG, what + " Error: Server did not give reason");
 
-				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-					// we assume that the response body contains the error message
-					HttpEntity entity = response.getEntity();
-					if(entity != null) {
-						ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-						response.getEntity().writeTo(ostream);
-						if(mDoLog) Log.e(TAG, "getString Error: " + ostream.toString());
-					}
-					else
-						if(mDoLog) Log.e(TAG, "getString Error: Server did not give reason");
+				return null;
+			}
 
-					return null;
+			if(mDoLog) Log.i(TAG, what + " Success for query " + url);
+
+			// decompresses while reading, the cache stores the decoded body
+			HttpEntity entity = ContentEncoding.decode(response.getEntity());
+			if(cache != null)
+				cache.countMiss();
+			if(cache != null && entity != null) {
+				if(RESTfulResponseCache.isCacheable(response, now)) {
+					if(!storeBody)
+						return new CacheableEntity(entity, cache, key, response, now);
+					byte[] body = RESTfulBufferPool.readFully(entity.getContent(), entity.getContentLength(), RESTfulBufferPool.SMALL);
+					if(body == null) // interrupted
+						return null;
+					cache.put(RESTfulResponseCache.entryFromResponse(key, response, body, now));
+					return new ByteArrayEntity(body);
 				}
+			}
 
-				if(mDoLog) Log.i(TAG, "getString Success for query " + url);
-
-				HttpEntity entity = response.getEntity();
-				if (entity != null) {
+			return entity;
+		}
 
-					InputStream instream = entity.getContent();
-					BufferedReader reader = new BufferedReader(new InputStreamReader(instream));
-					StringBuilder sb = new StringBuilder();
 
-					String line = null;
+		private String getString(String url)
+		{
+			if(mDoLog) Log.i(TAG, "getString on " +url);
 
-					while ((line = reader.readLine()) != null)
-						sb.append(line + '\n');
+			try {
+				HttpEntity entity = executeGet("getString", url);
+				if (entity != null) {
 
-					String result=sb.toString();
+					String result = RESTfulBufferPool.toString(entity);
 
 					if(mDoLog) Log.i(TAG,result);
 
-					instream.close();
-
 					return result;
 				}
 			}
 			catch (Throwable e){
+				failed(e);
 				if(mDoLog) Log.e(TAG, "getString error for query " + url, e);
 			}
 
@@ -762,66 +2593,66 @@ public class RESTfulClient  {
 			if(mDoLog) Log.i(TAG, "getRawData on " +url);
 
 
-			HttpGet httpGet = new HttpGet(url);
-
 			try {
-				HttpResponse response = mHttpClient.execute(httpGet);
+				HttpEntity entity = executeGet("getRawData", url);
+				if (entity != null) {
 
-				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-					// we assume that the response body contains the error message
-					HttpEntity entity = response.getEntity();
-					if(entity != null) {
-						ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-						response.getEntity().writeTo(ostream);
-						if(mDoLog) Log.e(TAG, "getRawData Error: " + ostream.toString());
-					}
-					else
-						if(mDoLog) Log.e(TAG, "getRawData Error: Server did not give reason");
+					long contentLength = entity.getContentLength();
 
-					return null;
+					// a known length is read straight into the result array
+					byte[] data = RESTfulBufferPool.readFully(entity.getContent(), contentLength, RESTfulBufferPool.MEDIUM);
+					if(data == null) // interrupted
+						return null;
+					long bytesRead = data.length;
+
+					if(mDoLog) Log.i(TAG, "getRawData Success for query '" +url + "' read " + bytesRead + " of " + contentLength);
+
+					return data;
 				}
+			}
+			catch (Throwable e){
+				failed(e);
+				if(mDoLog) Log.e(TAG, "getRawData error for query " + url, e);
+			}
 
-				HttpEntity entity = response.getEntity();
-				if (entity != null) {
+			return null;
 
-					InputStream in = entity.getContent();
+		}
 
-					// Now that the InputStream is open, get the content length
-					long contentLength = entity.getContentLength();
 
-					long bytesRead = 0;
+		private ByteBuffer getRawDataBuffer(String url) {
 
-					// To avoid having to resize the array over and over and over as
-					// bytes are written to the array, provide an accurate estimate of
-					// the ultimate size of the byte array
-					ByteArrayOutputStream out;
-					if (contentLength != -1) {
-						out = new ByteArrayOutputStream((int)contentLength);
-					} else {
-						out = new ByteArrayOutputStream(16384); // Pick some appropriate size
-					}
+			if(mDoLog) Log.i(TAG, "getRawDataBuffer on " +url);
 
-					byte[] buf = new byte[512];
-					while (true) {
-						int len = in.read(buf);
-						if (len == -1) {
-							break;
-						}
-						out.write(buf, 0, len);
-						bytesRead += len;
-						if(isInterrupted()) // stop reading if thread got a pending interrupt
-							break;
+			try {
+				// the body is read here, so that it is sized exactly or mapped like any other
+				HttpEntity entity = executeGet("getRawDataBuffer", url, false);
+				if (entity instanceof CachedEntity)
+					return ((CachedEntity) entity).buffer();
+				if (entity != null) {
+
+					long contentLength = entity.getContentLength();
+
+					ByteBuffer data = ByteBufferReader.read(entity.getContent(), contentLength, mBufferSpillThreshold, mBufferSpillDir);
+					if(data == null) // interrupted
+						return null;
+
+					// mapped bodies are too large for the cache, the others are copied as the caller may modify data
+					if(entity instanceof CacheableEntity && !data.isDirect()) {
+						byte[] body = new byte[data.remaining()];
+						data.duplicate().get(body);
+						((CacheableEntity) entity).store(body);
 					}
-					in.close();
-					out.close();
 
-					if(mDoLog) Log.i(TAG, "getRawData Success for query '" +url + "' read " + bytesRead + " of " + contentLength);
+					if(mDoLog) Log.i(TAG, "getRawDataBuffer Success for query '" +url + "' read " + data.remaining() + " of " + contentLength
+							+ (data.isDirect() ? ", mapped" : ""));
 
-					return out.toByteArray();
+					return data;
 				}
 			}
 			catch (Throwable e){
-				if(mDoLog) Log.e(TAG, "getRawData error for query " + url, e);
+				failed(e);
+				if(mDoLog) Log.e(TAG, "getRawDataBuffer error for query " + url, e);
 			}
 
 			return null;
@@ -829,93 +2660,185 @@ public class RESTfulClient  {
 		}
 
 
-		private String getFile(String url, String filename, final RESTfulInterface.OnGetFileProgressListener progressCallback) {
+		private String getFile(final Task task) {
 
-			if(mDoLog) Log.i(TAG, "getFile on " +url);
+			final String url = task.in_url;
+			final String filename = task.out_filename;
 
-			HttpGet httpGet = new HttpGet(url);
+			if(mDoLog) Log.i(TAG, "getFile on " +url);
 
-			int retries = 0;
+			task.progress = new ProgressDispatcher(task.callbackHandler, RESTfulClient.this, mProgressIntervalMillis, mProgressMinBytes) {
+				@Override
+				void deliver(long delta, long total, long expected) {
+					final RESTfulInterface.OnGetFileProgressListener progressCallback;
+					synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
+						progressCallback = task.getFileProgressCallback;
+					}
+					if (progressCallback != null) // check for null
+						progressCallback.onProgress(delta, total, expected);
+				}
+			};
+
+			// data goes to a part file first, so an interrupted download can be resumed, even after a restart
+			final PartialDownload download = new PartialDownload(filename);
+			long offset = download.resumeOffset(url);
+			if(offset == 0)
+				download.discard();
+			else if(mDoLog)
+				Log.i(TAG, "getFile resuming " + url + " at " + offset);
+
+			// big files from servers supporting ranges are fetched in concurrent segments
+			final int segmentCount = mSegmentCount;
+			if(offset == 0 && segmentCount > 1) {
+				// probe and segments are requests of this task like any other, for cancelling, timeouts and metrics
+				final SegmentedDownload.RequestSender sender = new SegmentedDownload.RequestSender() {
+					@Override
+					public HttpResponse send(HttpUriRequest request) throws IOException {
+						return execute(request);
+					}
+				};
+				try {
+					SegmentedDownload.Probe probe = SegmentedDownload.probe(sender, url);
+					long segments = probe != null ? Math.min(segmentCount, probe.length / mMinSegmentSize) : 0;
+					if(segments > 1) {
+						SegmentedDownload sd = new SegmentedDownload(sender, getHelperExecutor(), url, probe, mDoLog);
+						boolean ok = sd.run(download.part, (int)segments, new SegmentedDownload.ProgressListener() {
+							@Override
+							public void transferred(int bytes, long totalBytes, long length) {
+								task.progress.update(totalBytes, length);
+							}
+						});
+						if(ok) {
+							download.complete();
+							if (mDoLog) Log.i(TAG, "getFile Success for query '" + url + "' in " + segments + " segments");
+							return filename;
+						}
+						// server did not honour the ranges after all, fall back to a single stream
+						download.discard();
+					}
+				} catch (Throwable e) {
+					// segments cannot be resumed
+					download.discard();
+					failed(e);
+					if (mDoLog) Log.e(TAG, "getFile error for query " + url, e);
+					return null;
+				}
+			}
 
 			while(true) {
 				try {
-					HttpResponse response = mHttpClient.execute(httpGet);
+					HttpGet httpGet = new HttpGet(url);
+					if(offset > 0)
+						download.addRangeHeaders(httpGet, offset);
 
-					if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+					HttpResponse response = execute(httpGet);
+					final int status = response.getStatusLine().getStatusCode();
+					HttpEntity entity = response.getEntity();
+
+					final long contentLength;
+					if (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+						long[] range = PartialDownload.parseContentRange(getHeaderValue(response, "Content-Range"));
+						if(range == null || range[0] != offset) {
+							// not what we asked for, start over
+							if(mDoLog) Log.w(TAG, "getFile unexpected range for " + url + ", restarting");
+							if(entity != null)
+								entity.consumeContent();
+							download.discard();
+							offset = 0;
+							continue;
+						}
+						contentLength = range[1] >= 0 ? range[1] : download.length();
+					}
+					else if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+						if(entity != null)
+							entity.consumeContent();
+						long[] range = PartialDownload.parseContentRange(getHeaderValue(response, "Content-Range"));
+						if(range != null && range[1] == offset) {
+							// we had everything already
+							download.complete();
+							return filename;
+						}
+						download.discard();
+						offset = 0;
+						continue;
+					}
+					else if (status == HttpStatus.SC_OK) {
+						// a full entity, either because we asked for it or because the remote changed
+						if(offset > 0 && mDoLog) Log.i(TAG, "getFile server sent full entity for " + url);
+						offset = 0;
+						contentLength = entity != null ? entity.getContentLength() : -1;
+						download.begin(url, response, contentLength);
+					}
+					else {
+						failed(response);
 						// we assume that the response body contains the error message
-						HttpEntity entity = response.getEntity();
 						if (entity != null) {
-							ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-							response.getEntity().writeTo(ostream);
-							if (mDoLog) Log.e(TAG, "getFile Error: " + ostream.toString());
+							String error = RESTfulBufferPool.toString(entity);
+							if (mDoLog) Log.e(TAG, "getFile Error: " + error);
 						} else if (mDoLog) Log.e(TAG, "getFile Error: Server did not give reason");
 
+						// keep what we have if the server may just be having a bad moment
+						if(status < 500)
+							download.discard();
 						return null;
 					}
 
-					HttpEntity entity = response.getEntity();
 					if (entity != null) {
 
 						InputStream in = entity.getContent();
 
-						// Now that the InputStream is open, get the content length
-						final long contentLength = entity.getContentLength();
+						long totalBytesRead = offset;
 
-						long totalBytesRead = 0;
+						OutputStream out = download.open(offset > 0);
 
-						// make sure any leading paths exist
+						byte[] buf = RESTfulBufferPool.acquire(RESTfulBufferPool.LARGE);
 						try {
-							new File(filename).getParentFile().mkdirs();
-						} catch (NullPointerException e) {
-							// so what
-						}
-
+							while (true) {
+								final int readBytes = in.read(buf);
+								if (readBytes == -1) {
+									break;
+								}
+								out.write(buf, 0, readBytes);
+								totalBytesRead += readBytes;
 
-						FileOutputStream out = new FileOutputStream(filename);
+								task.progress.update(totalBytesRead, contentLength);
 
-						byte[] buf = new byte[8192];
-						while (true) {
-							final int readBytes = in.read(buf);
-							if (readBytes == -1) {
-								break;
-							}
-							out.write(buf, 0, readBytes);
-							totalBytesRead += readBytes;
-
-							final long total = totalBytesRead;
-
-							synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-								if (progressCallback != null) // check for null
-									mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-										@Override
-										public void run() {
-											progressCallback.onProgress(readBytes, total, contentLength);
-										}
-									}));
+								if (isInterrupted()) // stop reading if thread got a pending interrupt
+									throw new InterruptedException();
 							}
-
-							if (isInterrupted()) // stop reading if thread got a pending interrupt
-								throw new InterruptedException();
+						} finally {
+							RESTfulBufferPool.release(buf);
+							// keeps the part file consistent for resuming
+							out.close();
 						}
 						in.close();
-						out.close();
+
+						download.complete();
 
 						if (mDoLog)
 							Log.i(TAG, "getFile Success for query '" + url + "' read " + totalBytesRead + " of " + contentLength);
 
 						return filename;
 					}
-				} catch (SocketTimeoutException toe) {
-					Log.w(TAG, "getFile timeout for query " + url + " - " + retries + " retries so far");
-					if(retries++ > 3) {
-						// delete partially downloaded file. we might change semantics in the future and indicate partial download in the complete callback
-						new File(filename).delete();
-						if (mDoLog) Log.e(TAG, "getFile timeout retries exceeded for query " + url);
+
+					download.discard();
+					return null;
+
+				} catch (IOException e) {
+					if(task.abandoned || isInterrupted()) {
+						// cancelling aborts the connection, which ends up here as well
+						download.discard();
+						if (mDoLog) Log.i(TAG, "getFile cancelled for query " + url);
 						return null;
 					}
+					// timed out or the network went away, keep the part file so that a retry or a later getFile
+					// for the same url and file can resume
+					failed(e);
+					if (mDoLog) Log.e(TAG, "getFile error for query " + url, e);
+					return null;
 				} catch (Throwable e) {
-					// delete partially downloaded file. we might change semantics in the future and indicate partial download in the complete callback
-					new File(filename).delete();
+					// cancelled or failed for good: delete partially downloaded file
+					download.discard();
 					if (mDoLog) Log.e(TAG, "getFile error for query " + url, e);
 					return null;
 				}
@@ -923,96 +2846,227 @@ public class RESTfulClient  {
 		}
 
 
-		private long getSize(ArrayList<String> urlList) {
+		private String getHeaderValue(HttpResponse response, String name) {
+			Header h = response.getFirstHeader(name);
+			return h != null ? h.getValue() : null;
+		}
 
-			long size=0;
 
-			for(String url : urlList) {
+		/**
+		 * Gets the sizes of the given urls with concurrent HEAD requests, at most mSizeFanOut at a time.
+		 * Stops at the first failure.
+		 * @param sizes Receives the size of each url.
+		 * @return Summed size or -1 on error.
+		 */
+		private long getSize(final ArrayList<String> urlList, final long[] sizes) {
+
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicBoolean failed = new AtomicBoolean();
+
+			Runnable headLoop = new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while(!failed.get() && (i = next.getAndIncrement()) < urlList.size()) {
+						sizes[i] = headSize(sanitizeUrl(urlList.get(i)));
+						if(sizes[i] < 0)
+							failed.set(true);
+					}
+				}
+			};
 
-				url = sanitizeUrl(url);
+			// the worker itself is one of the fan-out threads
+			int helpers = Math.min(mSizeFanOut, urlList.size()) - 1;
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int i = 0; i < helpers; ++i)
+				futures.add(getHelperExecutor().submit(headLoop));
 
-				HttpHead httpHead = new HttpHead(url);
+			headLoop.run();
 
-				try {
-					HttpResponse response = mHttpClient.execute(httpHead);
+			try {
+				for(Future<?> f : futures)
+					f.get();
+			} catch (ExecutionException e) {
+				failed.set(true);
+			} catch (InterruptedException e) {
+				// cancelled or out of time, don't leave the helpers running
+				failed.set(true);
+				cancelHelpers(futures);
+			} finally {
+				if(isInterrupted())
+					failed.set(true);
+			}
 
-					if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-						// we assume that the response body contains the error message
-						HttpEntity entity = response.getEntity();
-						if(entity != null) {
-							ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-							response.getEntity().writeTo(ostream);
-							if(mDoLog) Log.e(TAG, "getSize Error for query " +url + ": " + ostream.toString());
-						}
-						else
-						if(mDoLog) Log.e(TAG, "getSize Error: Server did not give reason");
+			if(failed.get())
+				return -1;
 
-						return -1;
-					}
+			long size = 0;
+			for(long s : sizes)
+				size += s;
+			return size;
+		}
 
-					if(mDoLog) Log.i(TAG, "getSize Success for query " + url);
 
-					size += Long.parseLong(response.getFirstHeader("Content-Length").getValue());
+		/**
+		 * Runs the requests of a batch, on this thread and on up to in_fan_out - 1 helper threads, but
+		 * no more than mMaxBatchFanOut allows.
+		 * @return The results in input order, null entries for failed requests.
+		 */
+		private Object[] runBatch(final Task task) {
 
+			final ArrayList<RESTfulBatchRequest> requests = task.in_batch;
+			final Object[] results = new Object[requests.size()];
+			final AtomicInteger next = new AtomicInteger();
+
+			Runnable requestLoop = new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while(!isInterrupted() && (i = next.getAndIncrement()) < requests.size()) {
+						final int index = i;
+						final Object result = runBatchRequest(requests.get(i));
+						results[i] = result;
+
+						synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
+							final RESTfulInterface.OnBatchItemCompleteListener itemCallback = task.batchItemCallback;
+							if(itemCallback != null && task.callbackHandler != null) // check for null
+								task.callbackHandler.sendMessage(task.taggedMsgFromHandlerAndRunnable(new Runnable() {
+									@Override
+									public void run() {
+										itemCallback.onComplete(index, result);
+									}
+								}));
+						}
+					}
 				}
-				catch (Throwable e){
-					if(mDoLog) Log.e(TAG, "getSize error for query " + url, e);
-                    return -1;
-				}
+			};
 
+			// the worker itself is one of the fan-out threads
+			int helpers = Math.min(Math.min(task.in_fan_out, mMaxBatchFanOut), requests.size()) - 1;
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int i = 0; i < helpers; ++i)
+				futures.add(getHelperExecutor().submit(requestLoop));
+
+			requestLoop.run();
+
+			for(Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if(mDoLog) Log.e(TAG, "batch request failed", e.getCause());
+				} catch (InterruptedException e) {
+					// cancelled or out of time, requests that did not finish have no result
+					cancelHelpers(futures);
+					return results.clone();
+				}
 			}
 
+			// failed requests got their null result, the batch as a whole went through
+			resetFailure();
+			return results;
+		}
+
+		/**
+		 * Stops the helpers of a fan-out interrupted by cancelling or the deadline. The task is marked
+		 * abandoned or expired already, so the attempt is neither retried nor taken as a success.
+		 */
+		private void cancelHelpers(ArrayList<Future<?>> futures) {
+			for(Future<?> f : futures)
+				f.cancel(true);
+		}
 
-			return size;
 
+		/**
+		 * @return The result of a single batch request, null on error.
+		 */
+		private Object runBatchRequest(RESTfulBatchRequest request) {
+			String url = sanitizeUrl(request.url);
+			switch (request.kind) {
+				case RESTfulBatchRequest.GET_JSON:
+					return getJSON(url);
+				case RESTfulBatchRequest.GET_STRING:
+					return getString(url);
+				case RESTfulBatchRequest.GET_RAWDATA:
+					return getRawData(url);
+				case RESTfulBatchRequest.GET_DECODED:
+					return getDecoded("getJSON", url, request.decoder);
+				case RESTfulBatchRequest.POST_JSON:
+					return postJSON(url, request.json);
+				default:
+					return null;
+			}
 		}
 
 
-		private JSONObject getJSON(String url)
-		{
-			HttpGet httpGet = new HttpGet(url);
+		/**
+		 * @return Size of the given url or -1 on error.
+		 */
+		private long headSize(String url) {
+
+			final long now = System.currentTimeMillis();
+			final SizeCache.Entry cached = mSizeCache.get(url);
+			if(cached != null && mSizeCache.isFresh(cached, now)) {
+				if(mDoLog) Log.i(TAG, "getSize cache hit for query " + url);
+				return cached.size;
+			}
+
+			HttpHead httpHead = new HttpHead(url);
+			if(cached != null && cached.etag != null)
+				httpHead.setHeader("If-None-Match", cached.etag);
 
 			try {
-				HttpResponse response = mHttpClient.execute(httpGet);
+				HttpResponse response = execute(httpHead);
+
+				if (cached != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+					if(mDoLog) Log.i(TAG, "getSize not modified for query " + url);
+					mSizeCache.put(url, new SizeCache.Entry(cached.size, cached.etag, now));
+					return cached.size;
+				}
 
 				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+					failed(response);
 					// we assume that the response body contains the error message
 					HttpEntity entity = response.getEntity();
 					if(entity != null) {
-						ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-						response.getEntity().writeTo(ostream);
-						if(mDoLog) Log.e(TAG, "getJSON Error: " + ostream.toString());
+						String error = RESTfulBufferPool.toString(entity);
+						if(mDoLog) Log.e(TAG, "getSize Error for query " +url + ": " + error);
 					}
 					else
-						if(mDoLog) Log.e(TAG, "getJSON Error: Server did not give reason");
+					if(mDoLog) Log.e(TAG, "getSize Error: Server did not give reason");
 
-					return null;
+					return -1;
 				}
 
-				if(mDoLog) Log.i(TAG, "getJSON Success for query " + url);
-
-				HttpEntity entity = response.getEntity();
-				if (entity != null) {
+				if(mDoLog) Log.i(TAG, "getSize Success for query " + url);
 
-					InputStream instream = entity.getContent();
-					BufferedReader reader = new BufferedReader(new InputStreamReader(instream));
-					StringBuilder sb = new StringBuilder();
+				long size = Long.parseLong(response.getFirstHeader("Content-Length").getValue());
+				mSizeCache.put(url, new SizeCache.Entry(size, getHeaderValue(response, "ETag"), now));
+				return size;
+			}
+			catch (Throwable e){
+				failed(e);
+				if(mDoLog) Log.e(TAG, "getSize error for query " + url, e);
+				return -1;
+			}
+		}
 
-					String line = null;
 
-					while ((line = reader.readLine()) != null)
-						sb.append(line + "\n");
+		private JSONObject getJSON(String url)
+		{
+			try {
+				HttpEntity entity = executeGet("getJSON", url);
+				if (entity != null) {
 
-					String result=sb.toString();
+					String result = RESTfulBufferPool.toString(entity);
 
 					if(mDoLog) Log.i(TAG,result);
 
-					instream.close();
-
+					// org.json parses as it always did, JSONStreamDecoder is only used when asked for
 					return new JSONObject(result);
 				}
 			}
 			catch (Throwable e){
+				failed(e);
 				if(mDoLog) Log.e(TAG, "getJSON error for query " + url, e);
 			}
 
@@ -1020,14 +3074,67 @@ public class RESTfulClient  {
 		}
 
 
+		/**
+		 * Decodes the body of a GET while reading it.
+		 * @param what Name of the calling operation, for logging.
+		 * @return The decoded object or null on error.
+		 */
+		private Object getDecoded(String what, String url, RESTfulDecoder<?> decoder)
+		{
+			try {
+				HttpEntity entity = executeGet(what, url);
+				if (entity != null) {
+
+					String charset = EntityUtils.getContentCharSet(entity);
+					InputStream instream = entity.getContent();
+					try {
+						Object result = decoder.decode(instream, charset != null ? charset : "UTF-8");
+
+						if(mDoLog) Log.i(TAG, String.valueOf(result));
+
+						return result;
+					} finally {
+						instream.close();
+					}
+				}
+			}
+			catch (Throwable e){
+				failed(e);
+				if(mDoLog) Log.e(TAG, what + " error for query " + url, e);
+			}
+
+			return null;
+		}
+
+
 		private String postJSON(String url, JSONObject data)
 		{
 			HttpPost httpPost = new HttpPost(url);
 
-			StringEntity se = null;
+			HttpEntity se = null;
 			try {
-				se = new StringEntity(data.toString());
-			} catch (UnsupportedEncodingException e1) {
+				final long threshold = mRequestCompressionThreshold;
+				if(threshold >= 0) {
+					// same bytes a StringEntity would send
+					byte[] body = data.toString().getBytes(HTTP.DEFAULT_CONTENT_CHARSET);
+					if(body.length > threshold) {
+						byte[] gzipped = ContentEncoding.gzip(body);
+						mRequestBytesUncompressed.addAndGet(body.length);
+						mRequestBytesSent.addAndGet(gzipped.length);
+						if(mDoLog) Log.d(TAG, "postJSON gzipped body from " + body.length + " to " + gzipped.length + " bytes");
+						ByteArrayEntity bae = new ByteArrayEntity(gzipped);
+						bae.setContentEncoding("gzip");
+						se = bae;
+					}
+				}
+				if(se == null) {
+					StringEntity plain = new StringEntity(data.toString());
+					mRequestBytesUncompressed.addAndGet(plain.getContentLength());
+					mRequestBytesSent.addAndGet(plain.getContentLength());
+					se = plain;
+				}
+			} catch (IOException e1) {
+				failed(e1);
 				if(mDoLog) Log.e(TAG, "postJSON error to " + url, e1);
 				return null;
 			}
@@ -1036,23 +3143,21 @@ public class RESTfulClient  {
 			httpPost.setHeader("Content-type", "application/json");
 
 			try {
-				HttpResponse response= mHttpClient.execute(httpPost);
+				HttpResponse response= execute(httpPost);
 
 				if(mDoLog) Log.i(TAG, "postJSON to " + url + " , code: " + response.getStatusLine().getStatusCode());
 
 				// print response body in any case
-				ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-				response.getEntity().writeTo(ostream);
-				String answer  =  ostream.toString();
-
-				ostream.close();
+				String answer = RESTfulBufferPool.toString(response.getEntity());
 
 				if(mDoLog) Log.i(TAG, "postJSON to:" + url + " , response: " + answer);
 
 				if(response.getStatusLine().getStatusCode() == HttpStatus.SC_OK)
 					return answer;
+				failed(response);
 			}
 			catch (Throwable e) {
+				failed(e);
 				if(mDoLog) Log.e(TAG, "postJSON error to " + url, e);
 			}
 
@@ -1060,25 +3165,32 @@ public class RESTfulClient  {
 		}
 
 
-		private String postMultipart(String url, InputStream[] inStreams, String[] mimeTypes, String[] filenames, final RESTfulInterface.OnPostMultipartProgressListener progressCallback) {
+		private String postMultipart(final Task task) {
+			final String url = task.in_url;
+			final InputStream[] inStreams = task.in_arr_is;
+			final String[] mimeTypes = task.in_arr_mimetypes;
+			final String[] filenames = task.in_arr_filenames;
+
 			HttpPost httpPost = new HttpPost(url);
 
+			task.progress = new ProgressDispatcher(task.callbackHandler, RESTfulClient.this, mProgressIntervalMillis, mProgressMinBytes) {
+				@Override
+				void deliver(long delta, long total, long expected) {
+					final RESTfulInterface.OnPostMultipartProgressListener progressCallback;
+					synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
+						progressCallback = task.postMultipartProgressCallback;
+					}
+					if(progressCallback != null) // check for null
+						progressCallback.onProgress(total);
+				}
+			};
 
 			CountingMultipartEntity multipartEntity = new CountingMultipartEntity(
 					HttpMultipartMode.BROWSER_COMPATIBLE,
 					new CountingMultipartEntity.ProgressListener() {
 						@Override
 						public void transferred(final long num) {
-
-							synchronized (RESTfulClient.this) { // do not interfere with cancelAll()
-								if(progressCallback != null) // check for null
-									mCurrentTask.callbackHandler.sendMessage(taggedMsgFromCurrentTaskHandlerAndRunnable(new Runnable() {
-										@Override
-										public void run() {
-											progressCallback.onProgress(num);
-										}
-									}));
-							}
+							task.progress.update(num, -1);
 						}
 					});
 
@@ -1096,19 +3208,20 @@ public class RESTfulClient  {
 
 
 			try {
-				HttpResponse response= mHttpClient.execute(httpPost);
+				HttpResponse response= execute(httpPost);
 
 				if(mDoLog) Log.i(TAG, "postMultipart to " + url + " , code: " + response.getStatusLine().getStatusCode());
 
 				// print response body in any case
-				ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-				response.getEntity().writeTo(ostream);
-				if(mDoLog) Log.i(TAG, "postMultipart to:" + url + " , response: " + ostream.toString());
+				String answer = RESTfulBufferPool.toString(response.getEntity());
+				if(mDoLog) Log.i(TAG, "postMultipart to:" + url + " , response: " + answer);
 
 				if(response.getStatusLine().getStatusCode() == HttpStatus.SC_OK)
-					return ostream.toString();
+					return answer;
+				failed(response);
 			}
 			catch (Throwable e) {
+				failed(e);
 				if(mDoLog) Log.e(TAG, "postMultipart error to " + url, e);
 			}
 
@@ -1118,24 +3231,19 @@ public class RESTfulClient  {
 
 	} // end workerthread
 
-	private org.apache.http.conn.ssl.SSLSocketFactory createAdditionalCertsSSLSocketFactory(Context ctx, int res, String pass) {
-	    try {
-	        final KeyStore ks = KeyStore.getInstance("BKS");
-
-	        // a bks file in res/raw
-	        final InputStream in = ctx.getResources().openRawResource(res);
-	        try {
-	            // don't forget to put the password used above in strings.xml/mystore_password
-	            ks.load(in, pass.toCharArray());
-	        } finally {
-	            in.close();
-	        }
-
-	        return new AdditionalKeyStoresSSLSocketFactory(ks);
+	private static org.apache.http.conn.ssl.SSLSocketFactory createAdditionalCertsSSLSocketFactory(Resources resources, int res, String pass) throws Exception {
+	    final KeyStore ks = KeyStore.getInstance("BKS");
 
-	    } catch( Exception e ) {
-	        throw new RuntimeException(e);
+	    // a bks file in res/raw
+	    final InputStream in = resources.openRawResource(res);
+	    try {
+	        // don't forget to put the password used above in strings.xml/mystore_password
+	        ks.load(in, pass.toCharArray());
+	    } finally {
+	        in.close();
 	    }
+
+	    return new AdditionalKeyStoresSSLSocketFactory(ks);
 	}
 
 }
@@ -0,0 +1,252 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Connection pools shared by all RESTfulClient instances of the process, so that clients reuse each
+ * other's warm keep-alive connections instead of paying TCP and TLS setup again.
+ *
+ * There is one pool per trust configuration, i.e. one for the system trust store and one for each
+ * additional keystore and password. Pool limits are process-wide and apply to pools created after configure().
+ */
+public final class RESTfulConnectionPool {
+
+	private static final String TAG = "RESTfulConnectionPool";
+
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 6;
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Key of the pool using the system trust store.
+	 */
+	static final String DEFAULT_TRUST = "default";
+
+	/**
+	 * @return The key of the pool trusting the given keystore resource opened with the given password.
+	 * The password goes in as a digest only, so it is not kept for the life of the process.
+	 */
+	static String keyStoreTrustKey(int bksResource, String pass) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(pass.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2 + 16);
+			sb.append("bks:").append(bksResource).append(':');
+			for(byte b : digest)
+				sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			return sb.toString();
+		} catch (Exception e) {
+			// every platform has SHA-256 and UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates the socket factory for https connections of a new pool. Only called if there is no
+	 * pool for the trust configuration yet.
+	 */
+	interface HttpsSocketFactoryProvider {
+		SocketFactory create();
+	}
+
+	private static int sMaxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+	private static int sMaxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private static long sKeepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+	private static long sIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+	private static final HashMap<String, ThreadSafeClientConnManager> sManagers = new HashMap<String, ThreadSafeClientConnManager>();
+	private static IdleConnectionEvictor sEvictor;
+
+	private RESTfulConnectionPool() {
+	}
+
+	/**
+	 * Sets the pool limits. Call this before creating the first RESTfulClient, pools already in use keep
+	 * their limits.
+	 * @param maxTotalConnections Maximum number of connections of a pool.
+	 * @param maxConnectionsPerRoute Maximum number of connections of a pool to a single host.
+	 * @param keepAliveMillis How long to keep an idle connection if the server does not say otherwise.
+	 * @param idleTimeoutMillis Idle connections are closed after this time, regardless of keep-alive.
+	 */
+	public static synchronized void configure(int maxTotalConnections, int maxConnectionsPerRoute, long keepAliveMillis, long idleTimeoutMillis) {
+		if(maxTotalConnections < 1 || maxConnectionsPerRoute < 1 || keepAliveMillis < 0 || idleTimeoutMillis <= 0)
+			throw new IllegalArgumentException("invalid connection pool configuration");
+
+		sMaxTotalConnections = maxTotalConnections;
+		sMaxConnectionsPerRoute = maxConnectionsPerRoute;
+		sKeepAliveMillis = keepAliveMillis;
+		sIdleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Closes all expired and idle connections of all pools right away, e.g. when the app goes to background.
+	 */
+	public static synchronized void evictIdleConnections() {
+		for(ClientConnectionManager cm : sManagers.values()) {
+			cm.closeExpiredConnections();
+			cm.closeIdleConnections(sIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return Number of connections currently held by all pools, leased or idle.
+	 */
+	public static synchronized int getConnectionsInPool() {
+		int count = 0;
+		for(ThreadSafeClientConnManager cm : sManagers.values())
+			count += cm.getConnectionsInPool();
+		return count;
+	}
+
+	/**
+	 * Returns the shared connection manager for the given trust configuration, creating it if needed.
+	 * @param trustKey DEFAULT_TRUST or a key identifying an additional keystore.
+	 * @param httpsProvider Provides the https socket factory if a new pool is created. May be null for DEFAULT_TRUST.
+	 */
+	static synchronized ClientConnectionManager getConnectionManager(String trustKey, HttpsSocketFactoryProvider httpsProvider) {
+
+		ThreadSafeClientConnManager cm = sManagers.get(trustKey);
+		if(cm != null)
+			return cm;
+
+		final SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		if(httpsProvider == null)
+			schemeRegistry.register(new Scheme("https", org.apache.http.conn.ssl.SSLSocketFactory.getSocketFactory(), 443));
+		else
+			schemeRegistry.register(new Scheme("https", httpsProvider.create(), 443));
+
+		HttpParams poolParams = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(poolParams, sMaxTotalConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(poolParams, new ConnPerRouteBean(sMaxConnectionsPerRoute));
+
+		cm = new ThreadSafeClientConnManager(poolParams, schemeRegistry);
+		sManagers.put(trustKey, cm);
+
+		if(sEvictor == null) {
+			sEvictor = new IdleConnectionEvictor();
+			sEvictor.start();
+		}
+
+		return cm;
+	}
+
+	/**
+	 * Drops the pool of the given trust configuration if it uses the given https socket factory, e.g.
+	 * because that could not be set up. The next client asking for it gets a new pool. Clients using the
+	 * dropped one keep it.
+	 */
+	static synchronized void discard(String trustKey, SocketFactory httpsFactory) {
+		ThreadSafeClientConnManager cm = sManagers.get(trustKey);
+		if(cm != null && cm.getSchemeRegistry().getScheme("https").getSocketFactory() == httpsFactory)
+			sManagers.remove(trustKey);
+	}
+
+	/**
+	 * Keeps a connection for as long as the server announces in its Keep-Alive header,
+	 * but never longer than the configured keep-alive duration.
+	 */
+	static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new ConnectionKeepAliveStrategy() {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			final long max;
+			synchronized (RESTfulConnectionPool.class) {
+				max = sKeepAliveMillis;
+			}
+
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement he = it.nextElement();
+				if (he.getValue() != null && he.getName().equalsIgnoreCase("timeout")) {
+					try {
+						return Math.min(Long.parseLong(he.getValue()) * 1000, max);
+					} catch (NumberFormatException e) {
+						// ignore
+					}
+				}
+			}
+			return max;
+		}
+	};
+
+
+	/**
+	 * Periodically closes expired and idle connections of all pools, so that no stale connection
+	 * is handed out and sockets do not linger.
+	 */
+	private static class IdleConnectionEvictor extends Thread {
+
+		IdleConnectionEvictor() {
+			super(TAG + "-evictor");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final long interval;
+				synchronized (RESTfulConnectionPool.class) {
+					interval = Math.max(sIdleTimeoutMillis / 2, 1000);
+				}
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				evictIdleConnections();
+			}
+		}
+	}
+
+}
@@ -31,6 +31,8 @@
 package com.shoutrlabs.restful;
 
 
+import java.nio.ByteBuffer;
+
 import org.json.JSONObject;
 
 public interface RESTfulInterface {
@@ -43,10 +45,18 @@ public interface RESTfulInterface {
 		void onComplete(byte[] returned);
 	}
 
+	interface OnGetRawDataBufferCompleteListener {
+		void onComplete(ByteBuffer returned);
+	}
+
 	interface OnGetJSONCompleteListener {
 		void onComplete(JSONObject returned);
 	}
 
+	interface OnGetDecodedCompleteListener<T> {
+		void onComplete(T returned);
+	}
+
 	interface OnPostJSONCompleteListener {
 		void onComplete(String returned);
 	}
@@ -83,4 +93,45 @@ public interface RESTfulInterface {
 		void onComplete(long accumulateSize);
 	}
 
+	interface OnGetSizesCompleteListener {
+		/**
+		 * @param accumulateSize Summed size of all urls or -1 on error.
+		 * @param sizes Size of each url, in the order given, or null on error.
+		 */
+		void onComplete(long accumulateSize, long[] sizes);
+	}
+
+	/**
+	 * Complete callbacks that also implement this are told why they get a null result, right before
+	 * their onComplete call.
+	 */
+	interface OnErrorListener {
+		/**
+		 * @param error The exception that made the request fail, e.g. a RESTfulCircuitOpenException.
+		 */
+		void onError(Throwable error);
+	}
+
+	interface OnRequestMetricsListener {
+		/**
+		 * Called on the worker thread after a call finished.
+		 */
+		void onRequestMetrics(RESTfulRequestMetrics metrics);
+	}
+
+	interface OnBatchItemCompleteListener {
+		/**
+		 * @param index Position of the request in the batch.
+		 * @param returned Result of the request, null on error.
+		 */
+		void onComplete(int index, Object returned);
+	}
+
+	interface OnBatchCompleteListener {
+		/**
+		 * @param returned Results of all requests in the order given, null entries for failed requests.
+		 */
+		void onComplete(Object[] returned);
+	}
+
 }
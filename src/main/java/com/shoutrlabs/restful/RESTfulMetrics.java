@@ -0,0 +1,274 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client-wide counters and latency histograms, per mode and per host. Read them with snapshot(),
+ * see RESTfulClient.getMetrics().
+ */
+public final class RESTfulMetrics {
+
+	/**
+	 * Upper bounds of the histogram buckets in milliseconds. A last bucket takes everything above.
+	 */
+	static final long[] BUCKET_BOUNDS = { 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+	/**
+	 * Latencies of finished calls, from queueing to posting the result.
+	 */
+	public static final class Histogram {
+
+		private final long[] mCounts = new long[BUCKET_BOUNDS.length + 1];
+		private long mCount;
+		private long mSumMillis;
+		private long mMaxMillis;
+
+		Histogram() {
+		}
+
+		Histogram(Histogram other) {
+			System.arraycopy(other.mCounts, 0, mCounts, 0, mCounts.length);
+			mCount = other.mCount;
+			mSumMillis = other.mSumMillis;
+			mMaxMillis = other.mMaxMillis;
+		}
+
+		void add(long millis) {
+			int i = 0;
+			while(i < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[i])
+				++i;
+			mCounts[i]++;
+			mCount++;
+			mSumMillis += millis;
+			mMaxMillis = Math.max(mMaxMillis, millis);
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getMeanMillis() {
+			return mCount > 0 ? mSumMillis / mCount : 0;
+		}
+
+		public long getMaxMillis() {
+			return mMaxMillis;
+		}
+
+		/**
+		 * @return Upper bounds of the buckets in milliseconds, the last bucket has none.
+		 */
+		public long[] getBucketBounds() {
+			return BUCKET_BOUNDS.clone();
+		}
+
+		/**
+		 * @return Number of calls per bucket, one more entry than getBucketBounds().
+		 */
+		public long[] getBucketCounts() {
+			return mCounts.clone();
+		}
+
+		/**
+		 * @param percentile E.g. 95 for the 95th percentile.
+		 * @return Upper bound of the bucket the percentile falls into, the maximum for the last bucket.
+		 */
+		public long getPercentileMillis(double percentile) {
+			if(mCount == 0)
+				return 0;
+			long rank = (long)Math.ceil(percentile / 100 * mCount);
+			long seen = 0;
+			for(int i = 0; i < mCounts.length; i++) {
+				seen += mCounts[i];
+				if(seen >= rank)
+					return i < BUCKET_BOUNDS.length ? Math.min(BUCKET_BOUNDS[i], mMaxMillis) : mMaxMillis;
+			}
+			return mMaxMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "count " + mCount + " mean " + getMeanMillis() + " p50 " + getPercentileMillis(50)
+					+ " p95 " + getPercentileMillis(95) + " p99 " + getPercentileMillis(99) + " max " + mMaxMillis;
+		}
+	}
+
+	/**
+	 * The metrics at one point in time. Not changed by later calls.
+	 */
+	public static final class Snapshot {
+
+		private final long mRequests;
+		private final long mFailures;
+		private final long mRetries;
+		private final long mCoalesced;
+		private final long mReusedConnections;
+		private final long mBytesIn;
+		private final long mBytesOut;
+		private final HashMap<String, Histogram> mByMode;
+		private final HashMap<String, Histogram> mByHost;
+
+		private Snapshot(RESTfulMetrics m) {
+			mRequests = m.mRequests;
+			mFailures = m.mFailures;
+			mRetries = m.mRetries;
+			mCoalesced = m.mCoalesced;
+			mReusedConnections = m.mReusedConnections;
+			mBytesIn = m.mBytesIn;
+			mBytesOut = m.mBytesOut;
+			mByMode = copy(m.mByMode);
+			mByHost = copy(m.mByHost);
+		}
+
+		private static HashMap<String, Histogram> copy(HashMap<String, Histogram> from) {
+			HashMap<String, Histogram> to = new HashMap<String, Histogram>();
+			for(Map.Entry<String, Histogram> e : from.entrySet())
+				to.put(e.getKey(), new Histogram(e.getValue()));
+			return to;
+		}
+
+		/**
+		 * @return Finished calls.
+		 */
+		public long getRequests() {
+			return mRequests;
+		}
+
+		/**
+		 * @return Finished calls with an error status or exception.
+		 */
+		public long getFailures() {
+			return mFailures;
+		}
+
+		public long getRetries() {
+			return mRetries;
+		}
+
+		/**
+		 * @return Calls served by the result of an identical call.
+		 */
+		public long getCoalesced() {
+			return mCoalesced;
+		}
+
+		public long getReusedConnections() {
+			return mReusedConnections;
+		}
+
+		public long getBytesIn() {
+			return mBytesIn;
+		}
+
+		public long getBytesOut() {
+			return mBytesOut;
+		}
+
+		/**
+		 * @return Latencies by mode, e.g. "GETJSON".
+		 */
+		public Map<String, Histogram> getLatencyByMode() {
+			return mByMode;
+		}
+
+		/**
+		 * @return Latencies by host. Calls with several urls are not included.
+		 */
+		public Map<String, Histogram> getLatencyByHost() {
+			return mByHost;
+		}
+
+		@Override
+		public String toString() {
+			return "requests " + mRequests + " failures " + mFailures + " retries " + mRetries
+					+ " coalesced " + mCoalesced + " reused " + mReusedConnections
+					+ " in " + mBytesIn + " out " + mBytesOut + " by mode " + mByMode;
+		}
+	}
+
+	private long mRequests;
+	private long mFailures;
+	private long mRetries;
+	private long mCoalesced;
+	private long mReusedConnections;
+	private long mBytesIn;
+	private long mBytesOut;
+	private final HashMap<String, Histogram> mByMode = new HashMap<String, Histogram>();
+	private final HashMap<String, Histogram> mByHost = new HashMap<String, Histogram>();
+
+	RESTfulMetrics() {
+	}
+
+	synchronized void record(RESTfulRequestMetrics m) {
+		mRequests++;
+		if(m.getError() != null || m.getStatus() >= 400)
+			mFailures++;
+		mRetries += m.getRetryCount();
+		if(m.isCoalesced())
+			mCoalesced++;
+		if(m.isConnectionReused())
+			mReusedConnections++;
+		mBytesIn += m.getBytesIn();
+		mBytesOut += m.getBytesOut();
+
+		long total = m.getTotalMillis();
+		if(total < 0)
+			return;
+		histogram(mByMode, m.getMode()).add(total);
+		if(m.getHost() != null)
+			histogram(mByHost, m.getHost()).add(total);
+	}
+
+	private static Histogram histogram(HashMap<String, Histogram> map, String key) {
+		Histogram h = map.get(key);
+		if(h == null) {
+			h = new Histogram();
+			map.put(key, h);
+		}
+		return h;
+	}
+
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Starts counting from zero.
+	 */
+	public synchronized void reset() {
+		mRequests = mFailures = mRetries = mCoalesced = mReusedConnections = mBytesIn = mBytesOut = 0;
+		mByMode.clear();
+		mByHost.clear();
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+/**
+ * Timing and traffic of one call, see RESTfulInterface.OnRequestMetricsListener.
+ *
+ * Timestamps are SystemClock.uptimeMillis() values, 0 if the call did not get that far. The network
+ * timestamps are those of the first request a call made, the last byte is that of the last request.
+ * Calls doing several requests, like getSize of several urls, sum up their bytes. Retried calls report
+ * the timestamps of their last attempt and the bytes of all attempts.
+ */
+public final class RESTfulRequestMetrics {
+
+	final String mode;
+	final String url;
+	final String host;
+
+	long enqueuedAt;
+	long dequeuedAt;
+	long connectedAt;
+	long sentAt;
+	long firstByteAt;
+	long lastByteAt;
+	long callbackPostedAt;
+	long bytesIn;
+	long bytesOut;
+	int status;
+	boolean connectionReused;
+	int retryCount;
+	boolean coalesced;
+	Throwable error;
+
+	RESTfulRequestMetrics(String mode, String url, String host) {
+		this.mode = mode;
+		this.url = url;
+		this.host = host;
+	}
+
+	/**
+	 * Starts a new attempt of the call, keeping the byte counts.
+	 */
+	synchronized void beginAttempt(long now) {
+		dequeuedAt = now;
+		connectedAt = 0;
+		sentAt = 0;
+		firstByteAt = 0;
+		lastByteAt = 0;
+		status = 0;
+		connectionReused = false;
+	}
+
+	synchronized void sending(long now, boolean reused) {
+		if(connectedAt == 0) {
+			connectedAt = now;
+			connectionReused = reused;
+		}
+	}
+
+	synchronized void sent(long now, long bytes) {
+		if(sentAt == 0)
+			sentAt = now;
+		bytesOut += bytes;
+	}
+
+	synchronized void received(long now, int status) {
+		if(firstByteAt == 0)
+			firstByteAt = now;
+		// the first error is more telling than later successes
+		if(this.status == 0 || this.status < 300)
+			this.status = status;
+	}
+
+	synchronized void read(long now, long bytes, boolean done) {
+		bytesIn += bytes;
+		if(done)
+			lastByteAt = Math.max(lastByteAt, now);
+	}
+
+	/**
+	 * @return The operation, e.g. "GETJSON" or "POSTMULTIPART".
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The url, null for calls with several urls.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return Host of the url, null for calls with several urls.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	public synchronized long getEnqueuedAt() {
+		return enqueuedAt;
+	}
+
+	/**
+	 * @return When a worker took the call from the queue.
+	 */
+	public synchronized long getDequeuedAt() {
+		return dequeuedAt;
+	}
+
+	/**
+	 * @return When the request started going out, on a connection leased from the pool and connected.
+	 * The time from dequeued to this covers waiting for the connection and connecting.
+	 */
+	public synchronized long getConnectedAt() {
+		return connectedAt;
+	}
+
+	/**
+	 * @return When the request including its body was sent.
+	 */
+	public synchronized long getSentAt() {
+		return sentAt;
+	}
+
+	/**
+	 * @return When the response headers arrived.
+	 */
+	public synchronized long getFirstByteAt() {
+		return firstByteAt;
+	}
+
+	/**
+	 * @return When the response body was read to its end.
+	 */
+	public synchronized long getLastByteAt() {
+		return lastByteAt;
+	}
+
+	/**
+	 * @return When the complete callback was posted to its handler.
+	 */
+	public synchronized long getCallbackPostedAt() {
+		return callbackPostedAt;
+	}
+
+	/**
+	 * @return Response bytes read from the network, before decompression.
+	 */
+	public synchronized long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return Request bytes sent, including headers.
+	 */
+	public synchronized long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return Status code of the response, 0 if there was none.
+	 */
+	public synchronized int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return Whether the request went over a kept-alive connection.
+	 */
+	public synchronized boolean isConnectionReused() {
+		return connectionReused;
+	}
+
+	public synchronized int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * @return Whether the call did not do a request itself but got the result of an identical call.
+	 */
+	public synchronized boolean isCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * @return The exception the call failed with, null if it did not fail with one.
+	 */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * @return Time from queueing to posting the result, -1 if not posted.
+	 */
+	public synchronized long getTotalMillis() {
+		return callbackPostedAt > 0 ? callbackPostedAt - enqueuedAt : -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mode + " " + url + " status " + status + " total " + getTotalMillis() + " ms"
+				+ (dequeuedAt > 0 ? ", queued " + (dequeuedAt - enqueuedAt) + " ms" : "")
+				+ (firstByteAt > 0 && connectedAt > 0 ? ", ttfb " + (firstByteAt - connectedAt) + " ms" : "")
+				+ ", in " + bytesIn + " out " + bytesOut + (connectionReused ? ", reused" : "")
+				+ (retryCount > 0 ? ", retries " + retryCount : "");
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+/**
+ * Options of a single request, for the RESTfulClient calls taking them. Options not set fall back to
+ * the client's settings.
+ */
+public class RESTfulRequestOptions {
+
+	int priority = RESTfulClient.PRIORITY_NORMAL;
+	RESTfulRetryPolicy retryPolicy; // null for the client's policy
+	int connectTimeoutMillis; // 0 for the client's timeout
+	int readTimeoutMillis; // 0 for the client's timeout
+	long deadlineMillis; // 0 for none
+
+	/**
+	 * @param priority One of the RESTfulClient.PRIORITY_* constants, higher priorities are served first.
+	 */
+	public RESTfulRequestOptions setPriority(int priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	/**
+	 * @param retryPolicy Policy for this request, null for the client's policy.
+	 */
+	public RESTfulRequestOptions setRetryPolicy(RESTfulRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	/**
+	 * @param millis Time to wait for a connection to be established, 0 for the client's timeout.
+	 */
+	public RESTfulRequestOptions setConnectTimeout(int millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("timeout must not be negative");
+		this.connectTimeoutMillis = millis;
+		return this;
+	}
+
+	/**
+	 * @param millis Time to wait for the next data on the socket, 0 for the client's timeout.
+	 */
+	public RESTfulRequestOptions setReadTimeout(int millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("timeout must not be negative");
+		this.readTimeoutMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Sets the time the whole call may take, counted from issuing it and including time spent queued
+	 * and waiting for retries. A call whose deadline passes while queued is not run, a running one is
+	 * aborted. Either way it completes with null and a SocketTimeoutException for OnErrorListeners.
+	 * @param millis The deadline, 0 for none.
+	 */
+	public RESTfulRequestOptions setDeadline(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("deadline must not be negative");
+		this.deadlineMillis = millis;
+		return this;
+	}
+}
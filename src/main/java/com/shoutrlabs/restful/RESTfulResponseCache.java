@@ -0,0 +1,527 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.util.Log;
+
+/**
+ * A private HTTP cache for GET responses, following Cache-Control, Expires, ETag and Last-Modified.
+ *
+ * Entries are held in a memory LRU bounded by body bytes and, optionally, in a directory on disk
+ * bounded the same way. Fresh entries are served without network access, stale ones are revalidated
+ * with a conditional request.
+ *
+ * Entries are keyed by url and by the cookies and credentials the request is sent with, so a
+ * response is only served to the session it was fetched for. A cache belongs to one RESTfulClient.
+ */
+public class RESTfulResponseCache {
+
+	private static final String TAG = "RESTfulResponseCache";
+
+	private static final int DISK_MAGIC = 0x52435632; // 'RCV2', 'RCV1' entries were keyed by url only
+	private static final long MAX_HEURISTIC_LIFETIME_MILLIS = 24 * 60 * 60 * 1000;
+
+	private final long mMaxMemoryBytes;
+	private final File mDirectory;
+	private final long mMaxDiskBytes;
+
+	private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long mMemoryBytes;
+
+	private LinkedHashMap<String, Long> mDiskIndex; // file name -> size, least recently used first. Loaded lazily.
+	private long mDiskBytes;
+
+	private Object mClient; // the client using this cache
+	private volatile boolean mDoLog; // whether that client logs
+
+	private long mHitCount;
+	private long mConditionalHitCount;
+	private long mMissCount;
+
+	/**
+	 * Creates a memory-only cache.
+	 * @param maxMemoryBytes Maximum summed size of cached bodies.
+	 */
+	public RESTfulResponseCache(long maxMemoryBytes) {
+		this(maxMemoryBytes, null, 0);
+	}
+
+	/**
+	 * Creates a cache backed by a directory, e.g. a subdirectory of Context.getCacheDir().
+	 * @param maxMemoryBytes Maximum summed size of bodies cached in memory.
+	 * @param directory Directory to store entries in. Created if needed. May be null for a memory-only cache.
+	 * @param maxDiskBytes Maximum summed size of entries stored in directory.
+	 */
+	public RESTfulResponseCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+		mMaxMemoryBytes = maxMemoryBytes;
+		mDirectory = directory;
+		mMaxDiskBytes = maxDiskBytes;
+		if(mDirectory != null)
+			mDirectory.mkdirs();
+	}
+
+	/**
+	 * Binds this cache to the given client.
+	 * @param doLog Whether the client logs, the cache does the same.
+	 * @throws IllegalArgumentException if another client uses it already.
+	 */
+	synchronized void attach(Object client, boolean doLog) {
+		if(mClient != null && mClient != client)
+			throw new IllegalArgumentException("a response cache belongs to one client");
+		mClient = client;
+		mDoLog = doLog;
+	}
+
+	synchronized void detach(Object client) {
+		if(mClient == client) {
+			mClient = null;
+			mDoLog = false;
+		}
+	}
+
+	/**
+	 * Removes all entries from memory and disk.
+	 */
+	public synchronized void clear() {
+		mMemory.clear();
+		mMemoryBytes = 0;
+		if(mDirectory != null) {
+			loadDiskIndex();
+			for(String name : mDiskIndex.keySet())
+				new File(mDirectory, name).delete();
+			mDiskIndex.clear();
+			mDiskBytes = 0;
+		}
+	}
+
+	/**
+	 * @return Number of responses served from the cache without network access.
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return Number of stale responses the server confirmed to be unchanged with a 304.
+	 */
+	public synchronized long getConditionalHitCount() {
+		return mConditionalHitCount;
+	}
+
+	/**
+	 * @return Number of requests that had to fetch the full response.
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+
+	/**
+	 * A cached response. Immutable, revalidation creates a new entry sharing the body.
+	 */
+	static class Entry {
+		final String key; // the url, plus a fingerprint of cookies and credentials if there are any
+		final byte[] body;
+		final String etag; // may be null
+		final String lastModified; // may be null
+		final long expiresAt; // wall clock millis, 0 if it has to be revalidated on every use
+
+		Entry(String key, byte[] body, String etag, String lastModified, long expiresAt) {
+			this.key = key;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isFresh(long now) {
+			return now < expiresAt;
+		}
+
+		/**
+		 * Makes the given request conditional on this entry being stale.
+		 */
+		void addValidators(HttpRequest request) {
+			if(etag != null)
+				request.setHeader("If-None-Match", etag);
+			if(lastModified != null)
+				request.setHeader("If-Modified-Since", lastModified);
+		}
+
+		/**
+		 * @return A copy of this entry with freshness and validators updated from a 304 response.
+		 */
+		Entry revalidated(HttpResponse notModified, long now) {
+			Header etagHeader = notModified.getFirstHeader("ETag");
+			Header lmHeader = notModified.getFirstHeader("Last-Modified");
+			return new Entry(key, body,
+					etagHeader != null ? etagHeader.getValue() : etag,
+					lmHeader != null ? lmHeader.getValue() : lastModified,
+					computeExpiresAt(notModified, now));
+		}
+	}
+
+
+	/**
+	 * @return Whether the given 200 response, received at now, may be stored.
+	 */
+	static boolean isCacheable(HttpResponse response, long now) {
+		for(Header h : response.getHeaders("Cache-Control"))
+			for(HeaderElement e : h.getElements())
+				if(e.getName().equalsIgnoreCase("no-store"))
+					return false;
+
+		// the key covers cookies and credentials, the other request headers never change
+		for(Header h : response.getHeaders("Vary")) {
+			for(HeaderElement e : h.getElements()) {
+				String name = e.getName().trim();
+				if(!name.equalsIgnoreCase("Accept-Encoding") && !name.equalsIgnoreCase("Cookie")
+						&& !name.equalsIgnoreCase("Authorization"))
+					return false; // includes "*"
+			}
+		}
+
+		// without validators, storing only pays off if the response may be reused as is
+		return response.containsHeader("ETag")
+				|| response.containsHeader("Last-Modified")
+				|| computeExpiresAt(response, now) > now;
+	}
+
+	/**
+	 * Creates an entry for a cacheable 200 response whose body was read completely.
+	 */
+	static Entry entryFromResponse(String key, HttpResponse response, byte[] body, long now) {
+		Header etagHeader = response.getFirstHeader("ETag");
+		Header lmHeader = response.getFirstHeader("Last-Modified");
+		return new Entry(key, body,
+				etagHeader != null ? etagHeader.getValue() : null,
+				lmHeader != null ? lmHeader.getValue() : null,
+				computeExpiresAt(response, now));
+	}
+
+	/**
+	 * Computes until when a response received at now is fresh, Cache-Control taking precedence
+	 * over Expires, falling back to the usual 10% of the Last-Modified age heuristic.
+	 */
+	static long computeExpiresAt(HttpResponse response, long now) {
+
+		long maxAge = -1;
+		for(Header h : response.getHeaders("Cache-Control")) {
+			for(HeaderElement e : h.getElements()) {
+				if(e.getName().equalsIgnoreCase("no-cache"))
+					return 0;
+				if(e.getName().equalsIgnoreCase("max-age") && e.getValue() != null) {
+					try {
+						maxAge = Long.parseLong(e.getValue());
+					} catch (NumberFormatException ex) {
+						return 0;
+					}
+				}
+			}
+		}
+
+		long age = 0;
+		Header ageHeader = response.getFirstHeader("Age");
+		if(ageHeader != null) {
+			try {
+				age = Long.parseLong(ageHeader.getValue()) * 1000;
+			} catch (NumberFormatException ex) {
+				// ignore
+			}
+		}
+
+		if(maxAge >= 0)
+			return now + maxAge * 1000 - age;
+
+		Date date = parseDateHeader(response, "Date");
+		long serverNow = date != null ? date.getTime() : now;
+
+		Date expires = parseDateHeader(response, "Expires");
+		if(expires != null)
+			return now + (expires.getTime() - serverNow) - age;
+		if(response.containsHeader("Expires"))
+			return 0; // invalid Expires values, e.g. "0", mean already expired
+
+		Date lastModified = parseDateHeader(response, "Last-Modified");
+		if(lastModified != null && lastModified.getTime() < serverNow)
+			return now + Math.min((serverNow - lastModified.getTime()) / 10, MAX_HEURISTIC_LIFETIME_MILLIS) - age;
+
+		return 0;
+	}
+
+	private static Date parseDateHeader(HttpResponse response, String name) {
+		Header h = response.getFirstHeader(name);
+		if(h == null)
+			return null;
+		try {
+			return DateUtils.parseDate(h.getValue());
+		} catch (DateParseException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * @param key The url, plus the session fingerprint, see RESTfulClient.
+	 * @return The entry for the given key or null.
+	 */
+	Entry get(String key) {
+		synchronized (this) {
+			Entry e = mMemory.get(key);
+			if(e != null)
+				return e;
+			if(mDirectory == null)
+				return null;
+			loadDiskIndex();
+			if(mDiskIndex.get(fileName(key)) == null) // also marks it as recently used
+				return null;
+		}
+
+		// disk I/O outside the lock, files are replaced atomically
+		Entry e = readFromDisk(key);
+		if(e != null) {
+			synchronized (this) {
+				putInMemory(e);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Stores or replaces the entry for its key.
+	 */
+	void put(Entry e) {
+		synchronized (this) {
+			putInMemory(e);
+		}
+
+		if(mDirectory == null)
+			return;
+
+		final String name = fileName(e.key);
+		long size = writeToDisk(name, e);
+		if(size < 0)
+			return;
+
+		synchronized (this) {
+			loadDiskIndex();
+			Long old = mDiskIndex.put(name, size);
+			mDiskBytes += size - (old != null ? old : 0);
+			Iterator<Map.Entry<String, Long>> it = mDiskIndex.entrySet().iterator();
+			while(mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+				Map.Entry<String, Long> eldest = it.next();
+				new File(mDirectory, eldest.getKey()).delete();
+				mDiskBytes -= eldest.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	synchronized void countHit() {
+		++mHitCount;
+	}
+
+	synchronized void countConditionalHit() {
+		++mConditionalHitCount;
+	}
+
+	synchronized void countMiss() {
+		++mMissCount;
+	}
+
+
+	private void putInMemory(Entry e) {
+		Entry old = mMemory.remove(e.key);
+		if(old != null)
+			mMemoryBytes -= old.body.length;
+
+		if(e.body.length > mMaxMemoryBytes)
+			return;
+
+		mMemory.put(e.key, e);
+		mMemoryBytes += e.body.length;
+
+		Iterator<Entry> it = mMemory.values().iterator();
+		while(mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+			mMemoryBytes -= it.next().body.length;
+			it.remove();
+		}
+	}
+
+	private void loadDiskIndex() {
+		if(mDiskIndex != null)
+			return;
+
+		mDiskIndex = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		File[] files = mDirectory.listFiles();
+		if(files == null)
+			return;
+
+		// oldest first, approximating least recently used across restarts
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for(File f : files) {
+			if(f.getName().endsWith(".tmp")) {
+				f.delete();
+				continue;
+			}
+			mDiskIndex.put(f.getName(), f.length());
+			mDiskBytes += f.length();
+		}
+	}
+
+	private Entry readFromDisk(String key) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(mDirectory, fileName(key)))));
+			if(in.readInt() != DISK_MAGIC)
+				return null;
+			String storedKey = in.readUTF();
+			if(!storedKey.equals(key)) // hash collision
+				return null;
+			String etag = in.readBoolean() ? in.readUTF() : null;
+			String lastModified = in.readBoolean() ? in.readUTF() : null;
+			long expiresAt = in.readLong();
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new Entry(key, body, etag, lastModified, expiresAt);
+		} catch (IOException e) {
+			if(mDoLog) Log.w(TAG, "could not read cache entry for " + key + ": " + e);
+			return null;
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Size of the written file or -1 on error.
+	 */
+	private long writeToDisk(String name, Entry e) {
+		File tmp = new File(mDirectory, name + "." + Thread.currentThread().getId() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(DISK_MAGIC);
+			out.writeUTF(e.key);
+			out.writeBoolean(e.etag != null);
+			if(e.etag != null)
+				out.writeUTF(e.etag);
+			out.writeBoolean(e.lastModified != null);
+			if(e.lastModified != null)
+				out.writeUTF(e.lastModified);
+			out.writeLong(e.expiresAt);
+			out.writeInt(e.body.length);
+			out.write(e.body);
+			out.close();
+			out = null;
+
+			File f = new File(mDirectory, name);
+			if(!tmp.renameTo(f))
+				throw new IOException("rename failed");
+			return f.length();
+		} catch (IOException ex) {
+			if(mDoLog) Log.w(TAG, "could not write cache entry for " + e.key + ": " + ex);
+			tmp.delete();
+			return -1;
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param session Cookies and credentials the request is sent with, null if there are none.
+	 * @return The key of the response to a GET of url.
+	 */
+	static String key(String url, String session) {
+		if(session == null)
+			return url;
+		// hashed, as keys are stored on disk
+		return url + "#" + digest("SHA-256", session);
+	}
+
+	private static String fileName(String key) {
+		return digest("MD5", key);
+	}
+
+	private static String digest(String algorithm, String s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(algorithm);
+			byte[] digest = md.digest(s.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for(byte b : digest)
+				sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			return sb.toString();
+		} catch (Exception e) {
+			return Integer.toHexString(s.hashCode());
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides whether and when a failed request is tried again. Set one for all requests of a client with
+ * RESTfulClient.setRetryPolicy() or for a single request with RESTfulRequestOptions.setRetryPolicy().
+ *
+ * Waiting between attempts grows exponentially from the base delay up to the maximum delay, with
+ * random jitter so that many clients do not retry in lockstep. A Retry-After header of the server
+ * replaces the computed delay.
+ *
+ * GET and HEAD requests are retried on every retryable failure. POSTs are only retried if the request
+ * cannot have reached the server, i.e. the connection could not be established, or the server refused
+ * it with 429 or 503, unless retryNonIdempotent is set. Subclasses can change what is retryable.
+ */
+public class RESTfulRetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+	/**
+	 * Never retries, the default of RESTfulClient.
+	 */
+	public static final RESTfulRetryPolicy NONE = new RESTfulRetryPolicy(1, 0, 0, false);
+
+	private static final Random sRandom = new Random();
+
+	private final int mMaxAttempts;
+	private final long mBaseDelayMillis;
+	private final long mMaxDelayMillis;
+	private final boolean mRetryNonIdempotent;
+
+	/**
+	 * Creates a policy with the default attempts and delays that does not retry non-idempotent requests.
+	 */
+	public RESTfulRetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, false);
+	}
+
+	/**
+	 * @param maxAttempts Maximum number of attempts, including the first one.
+	 * @param baseDelayMillis Delay before the first retry, doubled for each further retry.
+	 * @param maxDelayMillis Upper bound of the delay. A longer Retry-After of the server ends retrying.
+	 * @param retryNonIdempotent Retry POSTs on all retryable failures, too. Only set this if the server
+	 *                           handles repeated POSTs gracefully.
+	 */
+	public RESTfulRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, boolean retryNonIdempotent) {
+		if(maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis)
+			throw new IllegalArgumentException("invalid retry policy");
+		mMaxAttempts = maxAttempts;
+		mBaseDelayMillis = baseDelayMillis;
+		mMaxDelayMillis = maxDelayMillis;
+		mRetryNonIdempotent = retryNonIdempotent;
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * @return Whether a request failing with this exception may succeed when tried again.
+	 */
+	public boolean isRetryableException(Throwable e) {
+		return e instanceof SocketTimeoutException
+				|| e instanceof ConnectTimeoutException
+				|| e instanceof NoHttpResponseException
+				|| e instanceof SocketException; // includes ConnectException and connection resets
+	}
+
+	/**
+	 * @return Whether a request answered with this status may succeed when tried again.
+	 */
+	public boolean isRetryableStatus(int status) {
+		return status == 408 || status == 429 || (status >= 500 && status <= 599 && status != 501 && status != 505);
+	}
+
+	/**
+	 * @param attempts Attempts made so far.
+	 * @param idempotent Whether the request may be repeated without side effects.
+	 * @param status Status of the failed attempt, 0 if there was no response.
+	 * @param error Exception of the failed attempt, null if there was a response.
+	 * @return Whether to make another attempt.
+	 */
+	public boolean shouldRetry(int attempts, boolean idempotent, int status, Throwable error) {
+		if(attempts >= mMaxAttempts)
+			return false;
+
+		if(error != null) {
+			if(!isRetryableException(error))
+				return false;
+			// these never got to send the request
+			return idempotent || mRetryNonIdempotent
+					|| error instanceof ConnectException || error instanceof ConnectTimeoutException;
+		}
+
+		if(!isRetryableStatus(status))
+			return false;
+		// these were refused before being processed
+		return idempotent || mRetryNonIdempotent || status == 429 || status == 503;
+	}
+
+	/**
+	 * @param attempts Attempts made so far, at least 1.
+	 * @param retryAfterMillis Delay asked for by the server, -1 if none.
+	 * @return Time to wait before the next attempt, -1 if the server asked for more than the maximum delay.
+	 */
+	public long getDelayMillis(int attempts, long retryAfterMillis) {
+		if(retryAfterMillis >= 0)
+			return retryAfterMillis <= mMaxDelayMillis ? retryAfterMillis : -1;
+
+		long delay = mBaseDelayMillis;
+		for(int i = 1; i < attempts && delay < mMaxDelayMillis; ++i)
+			delay *= 2;
+		delay = Math.min(delay, mMaxDelayMillis);
+
+		// equal jitter: at least half the delay, so retries do not come back immediately
+		long half = delay / 2;
+		synchronized (sRandom) {
+			return half + (half > 0 ? (long)(sRandom.nextDouble() * (delay - half + 1)) : 0);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.util.Log;
+
+/**
+ * Downloads a file as several byte ranges fetched concurrently, each written at its own offset
+ * into a preallocated file. This makes better use of high-latency links than a single TCP stream.
+ */
+class SegmentedDownload {
+
+	private static final String TAG = "RESTfulSegmentedDownload";
+	private static final int MAX_SEGMENT_RETRIES = 4;
+
+	/**
+	 * Sends the requests of the download, so they get the same treatment as any other request of the
+	 * calling task. Called from the segment threads, too.
+	 */
+	interface RequestSender {
+		HttpResponse send(HttpUriRequest request) throws IOException;
+	}
+
+	/**
+	 * Called from the segment threads after each write.
+	 */
+	interface ProgressListener {
+		void transferred(int bytes, long totalBytes, long length);
+	}
+
+	/**
+	 * Result of probing the remote with a HEAD request.
+	 */
+	static class Probe {
+		final long length;
+		final String validator; // for If-Range, may be null
+
+		Probe(long length, String validator) {
+			this.length = length;
+			this.validator = validator;
+		}
+	}
+
+	private final RequestSender mSender;
+	private final ExecutorService mExecutor;
+	private final String mUrl;
+	private final Probe mProbe;
+	private final boolean mDoLog;
+
+	private final AtomicBoolean mAborted = new AtomicBoolean();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final ArrayList<HttpGet> mRequests = new ArrayList<HttpGet>();
+
+	/**
+	 * Checks whether the remote supports byte ranges and has a known length.
+	 * @return The probe or null if a segmented download is not possible.
+	 */
+	static Probe probe(RequestSender sender, String url) throws IOException {
+		HttpResponse response = sender.send(new HttpHead(url));
+		if(response.getEntity() != null)
+			response.getEntity().consumeContent();
+
+		if(response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+			return null;
+
+		Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+		Header contentLength = response.getFirstHeader("Content-Length");
+		if(acceptRanges == null || !acceptRanges.getValue().contains("bytes") || contentLength == null)
+			return null;
+
+		Header etag = response.getFirstHeader("ETag");
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		String validator = null;
+		if(etag != null && !etag.getValue().startsWith("W/"))
+			validator = etag.getValue();
+		else if(lastModified != null)
+			validator = lastModified.getValue();
+
+		try {
+			return new Probe(Long.parseLong(contentLength.getValue()), validator);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	SegmentedDownload(RequestSender sender, ExecutorService executor, String url, Probe probe, boolean doLog) {
+		mSender = sender;
+		mExecutor = executor;
+		mUrl = url;
+		mProbe = probe;
+		mDoLog = doLog;
+	}
+
+	/**
+	 * Downloads into the given file, running the first segment on the calling thread.
+	 * @return false if the server did not honour the ranges, in which case the file content is undefined.
+	 * @throws InterruptedException if the calling thread got interrupted, all segments are aborted then.
+	 */
+	boolean run(File file, int segments, final ProgressListener listener) throws IOException, InterruptedException {
+
+		final long length = mProbe.length;
+		final long segmentSize = (length + segments - 1) / segments;
+
+		if(mDoLog) Log.i(TAG, "downloading " + mUrl + " in " + segments + " segments of " + segmentSize + " bytes");
+
+		File parent = file.getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			final FileChannel channel = raf.getChannel();
+
+			ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for(int i = 1; i < segments; ++i) {
+				final long first = i * segmentSize;
+				final long last = Math.min(first + segmentSize, length) - 1;
+				futures.add(mExecutor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						return fetchSegment(channel, first, last, listener);
+					}
+				}));
+			}
+
+			boolean ok;
+			try {
+				ok = fetchSegment(channel, 0, Math.min(segmentSize, length) - 1, listener);
+				for(Future<Boolean> f : futures)
+					ok &= f.get();
+			} catch (ExecutionException e) {
+				abort();
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException)
+					throw (IOException)cause;
+				throw new IOException(String.valueOf(cause));
+			} catch (InterruptedException e) {
+				abort();
+				throw e;
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+
+			if(mDoLog) Log.i(TAG, "downloaded " + mUrl + ", " + mTotal.get() + " of " + length);
+
+			return ok;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void abort() {
+		mAborted.set(true);
+		synchronized (mRequests) {
+			for(HttpGet g : mRequests)
+				g.abort();
+		}
+	}
+
+	/**
+	 * Fetches bytes first to last, inclusive. Resumes from the current position after timeouts.
+	 * @return false if the server did not answer with the requested range.
+	 */
+	private boolean fetchSegment(FileChannel channel, long first, long last, ProgressListener listener) throws IOException, InterruptedException {
+		byte[] buf = RESTfulBufferPool.acquire(RESTfulBufferPool.LARGE);
+		try {
+			return fetchSegment(channel, first, last, listener, buf);
+		} finally {
+			RESTfulBufferPool.release(buf);
+		}
+	}
+
+	private boolean fetchSegment(FileChannel channel, long first, long last, ProgressListener listener, byte[] buf) throws IOException, InterruptedException {
+
+		long position = first;
+		int retries = 0;
+
+		while(position <= last) {
+			if(mAborted.get())
+				return false;
+
+			HttpGet get = new HttpGet(mUrl);
+			get.setHeader("Range", "bytes=" + position + "-" + last);
+			if(mProbe.validator != null)
+				get.setHeader("If-Range", mProbe.validator);
+			synchronized (mRequests) {
+				mRequests.add(get);
+			}
+
+			try {
+				HttpResponse response = mSender.send(get);
+				HttpEntity entity = response.getEntity();
+				long[] range = PartialDownload.parseContentRange(
+						response.getFirstHeader("Content-Range") != null ? response.getFirstHeader("Content-Range").getValue() : null);
+
+				if(response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT
+						|| range == null || range[0] != position || entity == null) {
+					if(mDoLog) Log.w(TAG, "no range support for " + mUrl + ": " + response.getStatusLine());
+					get.abort(); // do not read a possibly huge full entity
+					mAborted.set(true);
+					return false;
+				}
+
+				InputStream in = entity.getContent();
+				try {
+					int read;
+					while(position <= last && (read = in.read(buf, 0, (int)Math.min(buf.length, last - position + 1))) != -1) {
+						ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+						while(bb.hasRemaining())
+							position += channel.write(bb, position);
+
+						listener.transferred(read, mTotal.addAndGet(read), mProbe.length);
+
+						if(mAborted.get())
+							return false;
+						if(Thread.currentThread().isInterrupted())
+							throw new InterruptedException();
+					}
+				} finally {
+					in.close();
+				}
+
+				if(position <= last && retries++ >= MAX_SEGMENT_RETRIES)
+					throw new IOException("premature end of segment at " + position + " for " + mUrl);
+			} catch (SocketTimeoutException e) {
+				if(retries++ >= MAX_SEGMENT_RETRIES)
+					throw e;
+				if(mDoLog) Log.w(TAG, "segment timeout for " + mUrl + ", resuming at " + position);
+			} finally {
+				synchronized (mRequests) {
+					mRequests.remove(get);
+				}
+			}
+		}
+
+		return true;
+	}
+}
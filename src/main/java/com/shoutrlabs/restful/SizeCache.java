@@ -0,0 +1,88 @@
+/*
+ * A threaded REST client implementation.
+ *
+ * Author Christian Beier
+ *
+ * Copyright (c) 2020, shoutr labs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.shoutrlabs.restful;
+
+import java.util.HashMap;
+
+/**
+ * Remembers entity sizes found by getSize for a short time. Within the time to live a size is used as
+ * is, afterwards it is revalidated with its ETag, which still saves transferring anything but a 304.
+ * A time to live of 0 disables the cache, nothing is stored and nothing is revalidated.
+ */
+class SizeCache {
+
+	private static final int MAX_ENTRIES = 1024;
+
+	static class Entry {
+		final long size;
+		final String etag; // may be null
+		final long fetchedAt;
+
+		Entry(long size, String etag, long fetchedAt) {
+			this.size = size;
+			this.etag = etag;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private volatile long mTimeToLiveMillis;
+
+	SizeCache(long timeToLiveMillis) {
+		mTimeToLiveMillis = timeToLiveMillis;
+	}
+
+	void setTimeToLive(long millis) {
+		mTimeToLiveMillis = millis;
+	}
+
+	boolean isFresh(Entry e, long now) {
+		return now - e.fetchedAt < mTimeToLiveMillis;
+	}
+
+	synchronized Entry get(String url) {
+		if(mTimeToLiveMillis == 0)
+			return null;
+		return mEntries.get(url);
+	}
+
+	synchronized void put(String url, Entry e) {
+		if(mTimeToLiveMillis == 0)
+			return;
+		if(mEntries.size() >= MAX_ENTRIES && !mEntries.containsKey(url))
+			mEntries.clear(); // manifests come in bursts, simply start over
+		mEntries.put(url, e);
+	}
+
+	synchronized void clear() {
+		mEntries.clear();
+	}
+}